@@ -1,587 +1,4993 @@
 import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Vector;
-import java.util.Map;
-import java.util.function.Function;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiPredicate;
+import java.util.function.BooleanSupplier;
+import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.regex.PatternSyntaxException;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.StandardCopyOption;
-// import java.nio.file.StandardOpenOption;
-import java.io.FileWriter;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
 public class CLI {
 
+    // CLI                      interactive shell on the console
+    // CLI [-f script] [-e] [-t]  batch mode, runs the lines of the script, or of
+    //                            stdin when it is not a terminal, without prompts.
+    //                            -e stops at the first failing line, -t prints the
+    //                            time spent per command at the end
     public static void main(String[] args){
-        Terminal terminal = new CLI().new Terminal();
-        while(true){
-            if (!terminal.chooseCommandAction()) {
-                break;
+        String scriptFile = null, socket = null;
+        boolean exitOnError = false, showTimings = false, serve = false, connect = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-f") && i + 1 < args.length) {
+                scriptFile = args[++i];
+            } else if (args[i].equals("-e")) {
+                exitOnError = true;
+            } else if (args[i].equals("-t")) {
+                showTimings = true;
+            } else if (args[i].equals("--serve") || args[i].equals("--connect")) {
+                serve |= args[i].equals("--serve");
+                connect |= args[i].equals("--connect");
+                if (i + 1 < args.length && !args[i + 1].startsWith("-")) {
+                    socket = args[++i];
+                }
+            } else {
+                System.err.println("Usage: CLI [-f script] [-e] [-t] | CLI --serve [socket] | CLI --connect [socket] [-f script] [-e] [-t]");
+                System.exit(2);
+            }
+        }
+
+        if (serve || connect) {
+            Path socketPath = (socket != null) ? Path.of(socket) : ShellServer.defaultSocket();
+            try {
+                if (serve) {
+                    ShellServer.serve(socketPath);
+                    return;
+                }
+                System.exit(ShellServer.connect(socketPath, scriptFile, exitOnError, showTimings));
+            } catch (IOException e) {
+                System.err.println((serve ? "Could not start the server: " : "Could not reach the server: ") + e.getMessage());
+                System.exit(2);
+            }
+        }
+
+        if (scriptFile == null && args.length == 0 && System.console() != null) {
+            Terminal terminal = new CLI().new Terminal();
+            // also runs on ctrl-C, so redirected output still reaches its files
+            Runtime.getRuntime().addShutdownHook(new Thread(terminal::close));
+            while(true){
+                if (!terminal.chooseCommandAction()) {
+                    break;
+                }
             }
+            return;
+        }
+
+        // the console is not written after every line, only when the buffer fills up
+        PrintStream console = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024), false, StandardCharsets.UTF_8);
+        Terminal terminal = new CLI().new Terminal(console);
+        Runtime.getRuntime().addShutdownHook(new Thread(terminal::close));
+        int status;
+        try (BufferedReader script = (scriptFile != null)
+                ? Files.newBufferedReader(Path.of(scriptFile), StandardCharsets.UTF_8)
+                : new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+            status = terminal.runBatch(script, exitOnError, showTimings);
+        } catch (IOException e) {
+            console.flush();
+            System.err.println("Could not read the script: " + e.getMessage());
+            status = 2;
         }
+        System.exit(status);
     }
 
-    class Terminal {
+    // Keeps one JVM running for many short scripts: CLI --serve listens on a Unix
+    // domain socket and every client that connects gets its own Terminal, with its
+    // own working directory, history and caches, on its own thread. CLI --connect is
+    // the thin client. It sends its working directory, the -e / -t flags and then
+    // the script (or its stdin) line by line, and writes what comes back to its
+    // stdout and stderr. The server answers in frames: 'O' or 'E', a length and
+    // that many bytes of output, and finally 'X' with the exit status
+    static class ShellServer {
 
-        private Parser parser;
-        public Map<String, Function<Void, String>> commandMap = new HashMap<>();
-        private Path path;
-        private Vector<String> history;
-        private String SPACE_CODE = "%32";
-    
-        public Terminal(){
-            initCommandMap();
-            this.path = Path.of("").toAbsolutePath();
-            this.parser = new Parser();
-            this.history = new Vector<>();
+        private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+        // ~/.cli.sock, or the path in the cli.socket system property
+        static Path defaultSocket() {
+            String configured = System.getProperty("cli.socket");
+            if (configured != null && !configured.isEmpty()) {
+                return Path.of(configured);
+            }
+            return Path.of(System.getProperty("user.home"), ".cli.sock");
         }
 
-        private void initCommandMap() {
-            commandMap.put("echo", v -> echo());
-            commandMap.put("pwd", v -> pwd());
-            commandMap.put("cd", v -> cd());
-            commandMap.put("ls", v -> ls());
-            commandMap.put("mkdir", v -> mkdir());
-            commandMap.put("rmdir", v -> rmdir());
-            commandMap.put("touch", v -> touch());
-            commandMap.put("cp", v -> cp());
-            commandMap.put("rm", v -> rm());
-            commandMap.put("cat", v -> cat());
-            commandMap.put("wc", v -> wc());
-            commandMap.put("history", v -> history());
-        }
-        //TODO: args with " " should include " 
-        private String[] getPathStringFromArgs(String[] args) {
-            // ArrayList<String> result = new ArrayList<String>();
-            String[] result = new String[args.length]; 
-            
-            for (int i = 0; i < getArgsLength(); i++) {
-                result[i] = args[i].replace(SPACE_CODE, " ");
+        static void serve(Path socket) throws IOException {
+            UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socket);
+            if (Files.exists(socket)) {
+                // a socket file left behind by a server that is gone is reused
+                try (SocketChannel probe = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+                    probe.connect(address);
+                    throw new IOException("A server is already listening on " + socket);
+                } catch (ConnectException e) {
+                    Files.delete(socket);
+                }
+            }
+
+            ExecutorService sessions = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "session");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+                server.bind(address);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        Files.deleteIfExists(socket);
+                    } catch (IOException e) {
+                        // the next server removes it
+                    }
+                }));
+                System.err.println("Listening on " + socket);
+                while (true) {
+                    SocketChannel client = server.accept();
+                    sessions.submit(() -> runSession(client));
+                }
             }
-            
-            return result;
         }
 
-        private Path getNewPath(Path newPath) {
+        private static void runSession(SocketChannel client) {
+            try (client) {
+                BufferedReader script = new BufferedReader(new InputStreamReader(inputOf(client), StandardCharsets.UTF_8));
+                DataOutputStream frames = new DataOutputStream(new BufferedOutputStream(outputOf(client), OUTPUT_BUFFER_SIZE));
+                String directory = script.readLine();
+                String flags = script.readLine();
+                if (directory == null || flags == null) {
+                    return;
+                }
+
+                PrintStream console = new PrintStream(new BufferedOutputStream(new FrameOutputStream(frames, 'O'), OUTPUT_BUFFER_SIZE), false, StandardCharsets.UTF_8);
+                PrintStream diagnostics = new PrintStream(new FrameOutputStream(frames, 'E'), true, StandardCharsets.UTF_8);
+                Terminal terminal = new CLI().new Terminal(console);
+                terminal.setDirectory(Path.of(directory));
+                int status;
                 try {
-                if (!newPath.isAbsolute()) {
-                    newPath = Path.of(this.path.toString() + "/" + newPath.toString()); 
+                    status = terminal.runBatch(script, flags.contains("e"), flags.contains("t"), diagnostics);
+                } finally {
+                    terminal.close();
+                    console.flush();
                 }
-                return newPath.toRealPath();
+                synchronized (frames) {
+                    frames.writeByte('X');
+                    frames.writeInt(status);
+                    frames.flush();
+                }
+            } catch (IOException e) {
+                // the client went away, there is nobody left to tell
+            }
+        }
 
-            } catch (Exception e) {
-                return null;
+        static int connect(Path socket, String scriptFile, boolean exitOnError, boolean showTimings) throws IOException {
+            BufferedReader script = (scriptFile != null)
+                ? Files.newBufferedReader(Path.of(scriptFile), StandardCharsets.UTF_8)
+                : new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+                channel.connect(UnixDomainSocketAddress.of(socket));
+
+                String flags = (exitOnError ? "e" : "") + (showTimings ? "t" : "");
+                Thread sender = new Thread(() -> {
+                    // closing the writer only shuts down our half of the connection,
+                    // which tells the server the script has ended
+                    try (BufferedWriter toServer = new BufferedWriter(new OutputStreamWriter(outputOf(channel), StandardCharsets.UTF_8))) {
+                        toServer.write(Path.of("").toAbsolutePath() + "\n" + flags + "\n");
+                        String line;
+                        while ((line = script.readLine()) != null) {
+                            toServer.write(line);
+                            toServer.write('\n');
+                            if (!script.ready()) {
+                                toServer.flush();
+                            }
+                        }
+                    } catch (IOException e) {
+                        // the server closed the connection, the reader below reports it
+                    }
+                }, "client-sender");
+                sender.setDaemon(true);
+                sender.start();
+
+                DataInputStream frames = new DataInputStream(new BufferedInputStream(inputOf(channel), OUTPUT_BUFFER_SIZE));
+                while (true) {
+                    int type = frames.read();
+                    if (type == -1) {
+                        System.err.println("Lost the connection to the server");
+                        return 2;
+                    }
+                    if (type == 'X') {
+                        return frames.readInt();
+                    }
+                    byte[] output = frames.readNBytes(frames.readInt());
+                    PrintStream target = (type == 'E') ? System.err : System.out;
+                    target.write(output, 0, output.length);
+                    target.flush();
+                }
             }
         }
-        
-        private boolean checkValideCreation(Path newPath, String pathString) {
-            if (getArgsLength() < 1) {
-                System.out.println("You have to provide at least one argument");
-                return false;
+
+        // Output of a session, cut into frames of one type. Frames of both types go
+        // through the same stream, so a frame is written as a whole
+        private static class FrameOutputStream extends OutputStream {
+
+            private final DataOutputStream frames;
+            private final char type;
+
+            FrameOutputStream(DataOutputStream frames, char type) {
+                this.frames = frames;
+                this.type = type;
             }
-            
-            // check existing file or directory 
-            if (getNewPath(newPath) != null) {
-                System.out.println("File already exists: " + pathString);
-                return false; 
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
             }
 
-            // check if the parent directory is root 
-            if (newPath.getParent() == null) {
-                newPath = Path.of("");
-                newPath = getNewPath(newPath);
-            } else {
-                newPath = getNewPath(newPath.getParent());
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                synchronized (frames) {
+                    frames.writeByte(type);
+                    frames.writeInt(length);
+                    frames.write(bytes, offset, length);
+                }
             }
 
-            // check if the parent directory exists
-            if (newPath == null) {
-                System.out.println("Cannot create directory: " + pathString +  " No such file or directory");
-                return false;
+            @Override
+            public void flush() throws IOException {
+                synchronized (frames) {
+                    frames.flush();
+                }
             }
-            
-            return true;
         }
-        
-        private void copyDir(Path source, Path target) throws IOException {
 
-            if (!Files.exists(target)) {
-                Files.createDirectories(target);
-            }
-            
-            try {
-                DirectoryStream<Path> stream = Files.newDirectoryStream(source);
-                for (Path entry : stream) {
-                    Path targetEntry = target.resolve(entry.getFileName());
-                    if (Files.isDirectory(entry)) {
-                        Files.createDirectories(entry);
-                        copyDir(entry, targetEntry);
+        // Channels.newInputStream and newOutputStream lock the channel for each
+        // read or write, and a read waiting for the next command would then block
+        // the output. These call the channel directly so both directions can run at once
+        private static InputStream inputOf(SocketChannel channel) {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int length) throws IOException {
+                    return length == 0 ? 0 : channel.read(ByteBuffer.wrap(bytes, offset, length));
+                }
+            };
+        }
+
+        private static OutputStream outputOf(SocketChannel channel) {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
                     }
-                    else {
-                        Files.copy(entry, targetEntry, StandardCopyOption.REPLACE_EXISTING);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (channel.isOpen()) {
+                        channel.shutdownOutput();
                     }
                 }
+            };
+        }
+    }
+
+    class Terminal {
+
+        private Parser parser;
+        public Map<String, Command> commandMap = new HashMap<>();
+        // the foreground working directory; a job keeps the one it started in
+        private volatile Path path;
+        private final CommandHistory history;
+        // where output goes when it is not redirected
+        private final PrintStream console;
+        // set by printError while a command line runs
+        private volatile boolean commandFailed;
+        private boolean exitRequested = false;
+        // the first command of the last line runCommandLine was given, what the
+        // timings of runBatch are kept under
+        private String lastCommandName;
+        private final DirectoryCache listingCache = new DirectoryCache();
+        private final PathCache resolvedPaths = new PathCache();
+        private final DiskUsage diskUsage = new DiskUsage();
+        private final CommandMetrics metrics = new CommandMetrics();
+        private final RedirectPool redirects = new RedirectPool();
+        private static final int COPY_BUFFER_SIZE = 64 * 1024;
+        private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+        // runs every pipeline stage but the last one, which runs on the caller's thread,
+        // and the read-ahead of a multi-file cat
+        private final ExecutorService stageExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "pipeline-stage");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // the background jobs by number, and the thread each of them runs on
+        private final Map<Integer, Job> jobs = new TreeMap<>();
+        private int nextJobId = 1;
+        private final ExecutorService jobExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "job");
+            thread.setDaemon(true);
+            return thread;
+        });
+    
+        // The interactive shell, its history is kept in CommandHistory.defaultFile()
+        public Terminal(){
+            this(System.out, CommandHistory.openDefault());
+        }
+
+        // A shell writing into "console" with a history that only lives in memory
+        public Terminal(PrintStream console){
+            this(console, CommandHistory.inMemory());
+        }
+
+        public Terminal(PrintStream console, CommandHistory history){
+            this.console = console;
+            initCommandMap();
+            this.path = Path.of("").toAbsolutePath();
+            this.parser = new Parser();
+            this.history = history;
+        }
+
+        private void initCommandMap() {
+            commandMap.put("echo", (args, in, out) -> echo(args, out));
+            commandMap.put("pwd", (args, in, out) -> pwd(args, out));
+            commandMap.put("cd", (args, in, out) -> cd(args, out));
+            commandMap.put("ls", (args, in, out) -> ls(args, out));
+            commandMap.put("mkdir", (args, in, out) -> mkdir(args, out));
+            commandMap.put("rmdir", (args, in, out) -> rmdir(args, out));
+            commandMap.put("touch", (args, in, out) -> touch(args, out));
+            commandMap.put("cp", (args, in, out) -> cp(args, out));
+            commandMap.put("rm", (args, in, out) -> rm(args, out));
+            commandMap.put("cat", (args, in, out) -> cat(args, in, out));
+            commandMap.put("wc", (args, in, out) -> wc(args, in, out));
+            commandMap.put("history", (args, in, out) -> history(args, out));
+            commandMap.put("stats", (args, in, out) -> stats(args, out));
+            commandMap.put("grep", (args, in, out) -> grep(args, in, out));
+            commandMap.put("find", (args, in, out) -> find(args, out));
+            commandMap.put("head", (args, in, out) -> head(args, in, out));
+            commandMap.put("du", (args, in, out) -> du(args, out));
+            commandMap.put("tail", (args, in, out) -> tail(args, in, out));
+            commandMap.put("jobs", (args, in, out) -> jobs(args, out));
+            commandMap.put("wait", (args, in, out) -> await(args, out));
+            commandMap.put("kill", (args, in, out) -> kill(args, out));
+        }
+
+        // The working directory of the command that is running: a job resolves its
+        // paths against the directory it was started in, not the one cd moved to since
+        private Path directory() {
+            Job job = Job.current();
+            return job != null ? job.directory : this.path;
+        }
+
+        // The real path of newPath resolved against the working directory, or null
+        // when it does not exist. Answers come from resolvedPaths when possible
+        private Path getNewPath(Path newPath) {
+            Path resolved = directory().resolve(newPath);
+            Path realPath = this.resolvedPaths.get(resolved);
+            if (realPath != null) {
+                return realPath;
+            }
+            try {
+                realPath = resolved.toRealPath();
             } catch (IOException e) {
-                System.err.println("Faild to read the file: " + e.getMessage());
+                return null;
             }
+            this.resolvedPaths.put(resolved, realPath);
+            return realPath;
         }
-        
-        private int getArgsLength() {
-            return this.parser.args.length;
+
+        // Called after a command created, replaced or removed "changed"
+        private void invalidatePath(Path changed) {
+            this.listingCache.invalidate(changed);
+            this.resolvedPaths.invalidate(changed);
+            this.diskUsage.invalidate(changed);
         }
+        
+        // Copies the directory tree under source into target. With more than one job the
+        // subdirectories and files are spread over a work stealing pool, otherwise the
+        // tree is copied on this thread; both produce the same tree
+        private void copyDir(Path source, Path target, FileCopier copier, int jobs) throws IOException {
+            if (jobs <= 1) {
+                copier.copyTree(source, target);
+                return;
+            }
 
-        private class FileComparator implements Comparator<File>{
-            @Override
-            public int compare(File file1, File file2) {
-                return file1.getName().compareTo(file2.getName());
+            ForkJoinPool pool = new ForkJoinPool(jobs);
+            try {
+                pool.invoke(copier.new CopyTreeTask(source, target));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                // after a failure the other tasks are still copying; the error is only
+                // reported once nothing writes into target anymore
+                pool.shutdown();
+                try {
+                    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
             }
         }
         
-        //Implement each command in a method, for example:
-        private String echo(){
-            String output = "";
+        // Copies through a fixed size buffer so the data never sits in memory as a whole.
+        // Stops early once "out" reports an error, e.g. when the next pipeline stage quit
+        private long copyStream(InputStream in, PrintStream out) throws IOException {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long copied = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                Job.checkCancelled();
+                out.write(buffer, 0, read);
+                copied += read;
+                if (out.checkError()) {
+                    break;
+                }
+            }
+            return copied;
+        }
 
-            for (int i = 0; i < getArgsLength(); i++) {
-                output += parser.args[i] + " ";
+        //Implement each command in a method, for example:
+        //Every command writes its output into "out" as it goes instead of building
+        //one big String, so the output can be as large as the files it comes from
+        private void echo(String[] args, PrintStream out){
+            for (int i = 0; i < args.length; i++) {
+                out.print(args[i]);
+                out.print(' ');
             }
-            output += "\n";
-            return output;
+            out.println();
         }
         
-        private String pwd(){
-            String output = this.path.toString() + "\n";
-            return output;
+        private void pwd(String[] args, PrintStream out){
+            out.println(directory().toString());
         }
         
-        private String cd(){
-            String output = "";
-
-            if (getArgsLength() > 1) {
-                output = "You have to provide no or at least one argument";
-                return output;
+        private void cd(String[] args, PrintStream out){
+            if (args.length > 1) {
+                printError(out, "You have to provide no or at least one argument");
+                return;
             }
             
-            if (getArgsLength() == 0) {
+            if (Job.current() != null) {
+                printError(out, "cd can not run in a background job");
+                return;
+            }
+
+            // changing directory is where a user expects a fresh look at the disk
+            this.resolvedPaths.clear();
+            if (args.length == 0) {
                 this.path = Path.of(System.getProperty("user.home"));
-                return output;
+                return;
             }
 
-            String pathString = getPathStringFromArgs(parser.args)[0];
+            String pathString = args[0];
 
             try {
 
                 Path newPath = Path.of(pathString);
                 newPath = getNewPath(newPath);
                 
-                if (newPath == null) {
-                    return "Invalid path";
+                if (newPath == null || !Files.isDirectory(newPath)) {
+                    printError(out, "Invalid path");
                 } else {
                     this.path = newPath;
                 } 
                 
             } catch (Exception e) {
-                return "Invalid path";
+                printError(out, "Invalid path");
             }
-            return output;
         }
 
-        private String ls() {
-            String output = "";
+        // ls [-r] [-U] [--offset N] [--limit N]
+        // -U prints the entries unsorted as the directory returns them, without
+        // reading the whole directory first. --offset and --limit select a page
+        private void ls(String[] args, PrintStream out) {
+            boolean inReverse = false, unsorted = false;
+            long offset = 0, limit = Long.MAX_VALUE;
 
-            if (getArgsLength() > 1) {
-                return "Wrong number of arguments";
-            }
-
-            boolean inReverse = false;
-
-            if (getArgsLength() == 1) {
-                if (parser.args[0].equals("-r")) {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-r")) {
                     inReverse = true;
+                } else if (args[i].equals("-U")) {
+                    unsorted = true;
+                } else if ((args[i].equals("--offset") || args[i].equals("--limit")) && i + 1 < args.length) {
+                    long value;
+                    try {
+                        value = Long.parseLong(args[i + 1]);
+                    } catch (NumberFormatException e) {
+                        value = -1;
+                    }
+                    if (value < 0) {
+                        printError(out, "Invalid number: " + args[i + 1]);
+                        return;
+                    }
+                    if (args[i].equals("--offset")) {
+                        offset = value;
+                    } else {
+                        limit = value;
+                    }
+                    i++;
                 } else {
-                    return "Invalid argument";
+                    printError(out, "Invalid argument: " + args[i]);
+                    return;
                 }
             }
 
-            File currentFolder = new File(this.path.toUri());
-            File[] files = currentFolder.listFiles();
+            try {
+                if (unsorted) {
+                    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory())) {
+                        Iterator<Path> entries = stream.iterator();
+                        printPage(new Iterator<String>() {
+                            public boolean hasNext() {
+                                return entries.hasNext();
+                            }
+
+                            public String next() {
+                                return entries.next().getFileName().toString();
+                            }
+                        }, offset, limit, out);
+                    }
+                    return;
+                }
 
-            Arrays.sort(files, new FileComparator());
+                String[] files = this.listingCache.list(directory());
+                if (files != null) {
+                    for (long i = offset; i < files.length && i - offset < limit; i++) {
+                        int currentFileIndex = (int) ((inReverse) ? (files.length - 1) - i : i);
+                        out.print(files[currentFileIndex]);
+                        out.print('\t');
+                    }
+                    out.println();
+                    return;
+                }
 
-            for (int i = 0; i <  files.length; i++) {
-                int currentFileIndex = (inReverse) ? (files.length - 1) - i : i;
-                output += (files[currentFileIndex].getName() + "\t");
+                // too many entries to keep in memory, sort them through temp files
+                Comparator<String> order = inReverse ? Comparator.reverseOrder() : Comparator.naturalOrder();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory());
+                     ExternalSort sorted = ExternalSort.sort(stream.iterator(), order, DirectoryCache.MAX_ENTRIES)) {
+                    printPage(sorted, offset, limit, out);
+                }
+            } catch (IOException | UncheckedIOException e) {
+                printError(out, "Faild to list the directory: " + e.getMessage());
             }
-            
-            output += "\n";
-            return output;
-        } 
+        }
 
-        private String mkdir() {
-            String output = "";
+        private void printPage(Iterator<String> names, long offset, long limit, PrintStream out) {
+            for (long skipped = 0; skipped < offset && names.hasNext(); skipped++) {
+                names.next();
+            }
+            for (long printed = 0; printed < limit && names.hasNext() && !out.checkError(); printed++) {
+                out.print(names.next());
+                out.print('\t');
+            }
+            out.println();
+        }
 
-            String pathString = "";
-            Path newPath = Path.of("");
-            String[] listOfPaths = getPathStringFromArgs(parser.args);
-            for (int i = 0; i < getArgsLength(); i++) {
-                pathString = listOfPaths[i];
+        private void mkdir(String[] args, PrintStream out) {
+            if (args.length < 1) {
+                printError(out, "You have to provide at least one argument");
+                return;
+            }
 
-                newPath = Path.of(pathString);
+            List<FileBatch.Target> targets = new ArrayList<>();
+            for (String pathString : args) {
+                targets.add(new FileBatch.Target(pathString, directory().resolve(pathString)));
+            }
+            // "mkdir a a/b" has to create a before a/b, so the directories are made
+            // one level at a time and in parallel within a level
+            targets.sort(Comparator.comparingInt(target -> target.path.normalize().getNameCount()));
 
-                if (!checkValideCreation(newPath, pathString)) {
-                    return output; 
+            FileBatch batch = new FileBatch();
+            int from = 0;
+            while (from < targets.size()) {
+                int depth = targets.get(from).path.normalize().getNameCount();
+                int to = from;
+                while (to < targets.size() && targets.get(to).path.normalize().getNameCount() == depth) {
+                    to++;
                 }
-
-                try {
-                    newPath = this.path.resolve(newPath);
-                    Files.createDirectory(newPath);
-                } catch (Exception e) {
-                    return "An unexpected error occurred";
-                } 
+                batch.run(targets.subList(from, to), (target, path) -> Files.createDirectory(path),
+                    (target, e) -> creationError("directory", target, e));
+                from = to;
             }
-
-            return output;
+            finishBatch("mkdir", batch, targets, out);
         }
 
-        private String rmdir() {
-            String output = "";
-            if (getArgsLength() != 1) {
-                return "You have to provide exactly one argument";
+        private void rmdir(String[] args, PrintStream out) {
+            if (args.length < 1) {
+                printError(out, "You have to provide at least one argument");
+                return;
             }
-            
-            if (this.parser.args[0].equals("*")) {
-                try {
-                    Files.walk(this.path, 1)
-                    .filter(Files::isDirectory)
-                    .forEach(directory -> {
-                            try {
-                                if (directory != this.path) {
-                                    Files.delete(directory);
-                                }
-                            } catch (Exception e) {
-                                String error = "delete faild: (" + directory + ") is not empty";
-                                throw new ArithmeticException(error);
-                            }
-                        });
-                } catch (Exception e) {
-                    return e.getMessage();
+
+            // "rmdir *" only means the directories, files matching the glob are left alone
+            List<FileBatch.Target> targets = expandGlobs(args, true);
+            FileBatch batch = new FileBatch();
+            batch.run(targets, (target, path) -> {
+                if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS) && Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                    throw new NotDirectoryException(target);
+                }
+                Files.delete(path);
+            }, (target, e) -> {
+                if (e instanceof NotDirectoryException) {
+                    return target + " is not a directory";
                 }
-                return output;
+                return deletionError(target, e);
+            });
+            finishBatch("rmdir", batch, targets, out);
+        }
+
+        private void touch(String[] args, PrintStream out) {
+            if (args.length < 1) {
+                printError(out, "You have to provide at least one argument");
+                return;
             }
 
-            String pathString = getPathStringFromArgs(parser.args)[0];
+            List<FileBatch.Target> targets = new ArrayList<>();
+            for (String pathString : args) {
+                targets.add(new FileBatch.Target(pathString, directory().resolve(pathString)));
+            }
+            FileBatch batch = new FileBatch();
+            batch.run(targets, (target, path) -> Files.createFile(path),
+                (target, e) -> creationError("file", target, e));
+            finishBatch("touch", batch, targets, out);
+        }
 
-            Path newPath = Path.of(pathString);
+        // Expands a glob in the last part of an argument (rm *.log, rmdir build/*) into
+        // the matching entries, sorted by name. Like the shell, * does not match names
+        // starting with a dot. Other arguments, and globs matching nothing, are kept as
+        // they are so the command reports them as missing
+        private List<FileBatch.Target> expandGlobs(String[] args, boolean directoriesOnly) {
+            List<FileBatch.Target> targets = new ArrayList<>();
+            for (String pathString : args) {
+                Path argument = directory().resolve(pathString);
+                Path fileName = argument.getFileName();
+                if (fileName == null || !isGlob(fileName.toString())) {
+                    targets.add(new FileBatch.Target(pathString, argument));
+                    continue;
+                }
 
-            if (getNewPath(newPath) != null) {
-                try {
-                    if (!Files.isDirectory(newPath)) {
-                        output = pathString + " is not a directory";
-                        return output;
+                String pattern = fileName.toString();
+                Path directory = argument.getParent();
+                List<Path> matches = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, pattern)) {
+                    for (Path entry : stream) {
+                        boolean hidden = entry.getFileName().toString().startsWith(".") && !pattern.startsWith(".");
+                        if (!hidden && (!directoriesOnly || Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS))) {
+                            matches.add(entry);
+                        }
                     }
-                    Files.delete(newPath);
-                } catch (Exception e) {
-                    output = "delete faild: (" + pathString + ") is not empty";
-                    return output;
+                } catch (IOException | IllegalArgumentException e) {
+                    // no such directory or a broken pattern, reported as a missing file
+                }
+
+                if (matches.isEmpty()) {
+                    targets.add(new FileBatch.Target(pathString, argument));
+                    continue;
+                }
+                Collections.sort(matches);
+                // print the matches the way they were asked for, relative or absolute
+                Path shownDirectory = Path.of(pathString).getParent();
+                for (Path match : matches) {
+                    String shown = shownDirectory == null ? match.getFileName().toString() : shownDirectory.resolve(match.getFileName()).toString();
+                    targets.add(new FileBatch.Target(shown, match));
                 }
-            } else {
-                output = "delete faild: (" + pathString +  ") no such file or directory";
-                return output;
             }
+            return targets;
+        }
 
-            return output; 
+        private boolean isGlob(String name) {
+            return name.indexOf('*') >= 0 || name.indexOf('?') >= 0 || name.indexOf('[') >= 0 || name.indexOf('{') >= 0;
         }
-        
-        private String touch() {
-            String output = "";
-            
-            if (getArgsLength() != 1) {
-                return "You have to provide exactly one argument";
-            }
 
-            String pathString = getPathStringFromArgs(parser.args)[0];
+        private String creationError(String kind, String target, IOException e) {
+            if (e instanceof FileAlreadyExistsException) {
+                return "File already exists: " + target;
+            }
+            if (e instanceof NoSuchFileException) {
+                return "Cannot create " + kind + ": " + target + " No such file or directory";
+            }
+            return "Cannot create " + kind + ": " + target + " " + e.getMessage();
+        }
 
-            Path newPath = Path.of(pathString);
+        private String deletionError(String target, IOException e) {
+            if (e instanceof NoSuchFileException) {
+                return "delete faild: (" + target + ") no such file or directory";
+            }
+            if (e instanceof DirectoryNotEmptyException) {
+                return "delete faild: (" + target + ") is not empty";
+            }
+            if (e instanceof AccessDeniedException) {
+                return "delete faild: (" + target + ") permission denied";
+            }
+            return "delete faild: (" + target + ") " + e.getMessage();
+        }
 
-            if (!checkValideCreation(newPath, pathString)) {
-                return "";
+        // Drops the cached listings the batch touched and prints its errors. A batch
+        // of more than one target ends with how many of them failed
+        private void finishBatch(String command, FileBatch batch, List<FileBatch.Target> targets, PrintStream out) {
+            for (FileBatch.Target target : targets) {
+                invalidatePath(target.path);
+            }
+            printErrors(batch.getErrors(), out);
+            if (batch.getFailedTargets() > 0 && targets.size() > 1) {
+                out.println(command + ": " + batch.getFailedTargets() + " of " + targets.size() + " faild");
             }
+        }
 
-            try {
-                newPath = this.path.resolve(newPath);
-                Files.createFile(newPath);
-            } catch (Exception e) {
-                return "An unexpected error occurred";
+        private void printErrors(List<String> errors, PrintStream out) {
+            int shown = Math.min(errors.size(), FileBatch.MAX_REPORTED_ERRORS);
+            for (int i = 0; i < shown; i++) {
+                printError(out, errors.get(i));
+            }
+            if (errors.size() > shown) {
+                printError(out, "... and " + (errors.size() - shown) + " more errors");
             }
-            return output; 
         }
         
-        private String cp() {
-            String output = "";
-            if (getArgsLength() != 2 && getArgsLength() != 3) {
-                return "You have to provide exactly two arguments: cp (source file) (target file)";
+        private void cp(String[] args, PrintStream out) {
+            boolean recursive = false, verbose = false, sync = false, compress = false;
+            int jobs = 1;
+            ArrayList<String> operands = new ArrayList<>();
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-r")) {
+                    recursive = true;
+                } else if (args[i].equals("--sync")) {
+                    sync = true;
+                } else if (args[i].equals("--compress")) {
+                    compress = true;
+                } else if (args[i].equals("-v")) {
+                    verbose = true;
+                } else if (args[i].equals("-j")) {
+                    try {
+                        jobs = Integer.parseInt(args[++i]);
+                    } catch (Exception e) {
+                        jobs = 0;
+                    }
+                    if (jobs < 1) {
+                        printError(out, "-j takes the number of parallel jobs: cp -r -j (jobs) (source) (target)");
+                        return;
+                    }
+                } else {
+                    operands.add(args[i]);
+                }
             }
-            
-            String pathString = "";
-            Path newPath = Path.of("");
 
+            if (operands.size() != 2) {
+                printError(out, "You have to provide exactly two arguments: cp [-r [-j jobs] [--sync] | --compress] [-v] (source) (target)");
+                return;
+            }
+            if (sync && !recursive) {
+                printError(out, "--sync only works on directories: cp -r --sync (source) (target)");
+                return;
+            }
+            if (compress && recursive) {
+                printError(out, "--compress only works on files: cp --compress (source) (target)");
+                return;
+            }
             
-            
-            for (int i = 0; i < getArgsLength(); i++) {
-                pathString = parser.args[i];
-                newPath = Path.of(pathString); 
-                
-                if (this.parser.args[0] == "-r" && (!Files.isDirectory(newPath) || getNewPath(newPath) == null)) {
-                    output = "Faild to copy: (" + pathString + ") is not directory";
-                    return output;
-                }
-                if (this.getArgsLength() == 2 && (Files.isDirectory(newPath) || getNewPath(newPath) == null)) {
-                    output = "Faild to copy: (" + pathString + ") is not file";
-                    return output;
-                }
+            String sourceString = operands.get(0);
+            Path source = getNewPath(Path.of(sourceString));
+
+            if (source == null) {
+                printError(out, "Faild to copy: (" + sourceString + ") no such file or directory");
+                return;
+            }
+            if (recursive && !Files.isDirectory(source)) {
+                printError(out, "Faild to copy: (" + sourceString + ") is not directory");
+                return;
+            }
+            if (!recursive && Files.isDirectory(source)) {
+                printError(out, "Faild to copy: (" + sourceString + ") is not file");
+                return;
             }
-            int inputIndex = (this.parser.args[0].equals("-r")) ? 1 : 0;
 
-            Path source = Path.of(this.parser.args[inputIndex]);
-            Path target = Path.of(this.parser.args[inputIndex + 1]);
-            source = this.path.resolve(source);
-            target = this.path.resolve(target);
+            Path target = directory().resolve(operands.get(1));
+            // copying a file onto a directory puts it inside the directory, like the real cp
+            if (!recursive && Files.isDirectory(target)) {
+                target = target.resolve(source.getFileName() + (compress ? ".gz" : ""));
+            }
             
+            FileCopier copier = sync ? new FileCopier(SyncManifest.load(target), target) : new FileCopier();
             try {
-                if (this.parser.args[0].equals("-r")) {
-                    copyDir(source, target);
-                    return "";
+                if (recursive) {
+                    copyDir(source, target, copier, jobs);
+                } else if (compress) {
+                    copier.compressFile(source, target);
+                } else {
+                    copier.copyFile(source, target);
                 }
-                String fileContent = new String(Files.readAllBytes(source));
-
-                Files.write(target, fileContent.getBytes(StandardCharsets.UTF_8));
             } catch (IOException e) {
-                output = "Faild to read the file: " + e.getMessage();
-                return output;
+                printError(out, "Faild to copy the file: " + e.getMessage());
+                return;
+            } finally {
+                if (sync) {
+                    // also after a failure, the files synced so far need not be looked at again
+                    try {
+                        copier.manifest.save();
+                    } catch (IOException e) {
+                        printError(out, "Faild to save the sync manifest: " + e.getMessage());
+                    }
+                }
+                invalidatePath(target);
+                CommandMetrics.addBytesRead(copier.getBytesCopied() + copier.getBytesHashed());
+                CommandMetrics.addBytesWritten(copier.getBytesCopied());
             }
 
-            return output;
+            if (verbose) {
+                out.println(copier.report());
+            }
         }
 
-        private String rm() {
-            String output = "";
-            if (getArgsLength() != 1) {
-                return "You have to provide exactly one argument: rm (file)";
+        private void rm(String[] args, PrintStream out) {
+            boolean recursive = false;
+            List<String> operands = new ArrayList<>();
+            for (String arg : args) {
+                if (arg.equals("-r")) {
+                    recursive = true;
+                } else {
+                    operands.add(arg);
+                }
+            }
+            if (operands.isEmpty()) {
+                printError(out, "You have to provide at least one argument: rm [-r] (file)...");
+                return;
             }
 
-            String pathString = getPathStringFromArgs(parser.args)[0];
-
-            Path newPath = Path.of(pathString);
-
-            if (getNewPath(newPath) != null) {
-                try {
-                    if (Files.isDirectory(newPath)) {
-                        output = pathString + " is not a file";
-                        return output;
-                    }
-                    Files.delete(this.path.resolve(newPath));
-                } catch (Exception e) {
-                    return "An unexpected error occurred";
-                }
+            List<FileBatch.Target> targets = expandGlobs(operands.toArray(new String[0]), false);
+            FileBatch batch = new FileBatch();
+            if (recursive) {
+                batch.deleteTrees(targets, this::deletionError);
             } else {
-                output = "delete faild: (" + pathString +  ") no such file or directory";
-                return output;
+                batch.run(targets, (target, path) -> {
+                    if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        throw new NotDirectoryException(target);
+                    }
+                    Files.delete(path);
+                }, (target, e) -> {
+                    if (e instanceof NotDirectoryException) {
+                        return target + " is not a file";
+                    }
+                    return deletionError(target, e);
+                });
             }
-            return output;
+            finishBatch("rm", batch, targets, out);
         }
         
-        private String cat() {
-            String output = "";
-            if (getArgsLength() != 1 && getArgsLength() != 2) {
-                return "Invalid number of arguments: (cat file_name) or (cat file1 file2)";
+        private void cat(String[] args, InputStream in, PrintStream out) {
+            if (args.length == 0 && in != null) {
+                try {
+                    copyStream(in, out);
+                } catch (IOException e) {
+                    printError(out, "Faild to read the input: " + e.getMessage());
+                }
+                return;
+            }
+            if (args.length == 0) {
+                printError(out, "Invalid number of arguments: cat (file)...");
+                return;
             }
-            
-            String pathString = "";
-            Path newPath = Path.of("");
 
-            for (int i = 0; i < getArgsLength(); i++) {
-                pathString = parser.args[i];
-                newPath = Path.of(pathString); 
-                
-                if (Files.isDirectory(newPath) || getNewPath(newPath) == null) {
-                    output = "Faild to copy: (" + pathString + ") is not file";
-                    return output;
+            List<Path> files = new ArrayList<>();
+            for (String pathString : args) {
+                Path newPath = directory().resolve(pathString);
+                if (!Files.isRegularFile(newPath)) {
+                    printError(out, "Faild to copy: (" + pathString + ") is not file");
+                    return;
                 }
+                files.add(newPath);
             }
 
-            try {
-                String fileContent = "";
-                for (int i = 0; i < getArgsLength(); i++) {
-                    pathString = parser.args[i];
-                    newPath = Path.of(pathString);
-                    fileContent += new String(Files.readAllBytes(this.path.resolve(newPath)));
-                    fileContent += "\n";
-                } 
+            // only the bytes of the files, so a pipe or a redirect gets them unchanged;
+            // the prompt starts on a new line by itself
+            if (files.size() == 1) {
+                try (InputStream file = Gzip.openDecoded(files.get(0))) {
+                    CommandMetrics.addBytesRead(copyStream(file, out));
+                } catch (IOException e) {
+                    printError(out, "Faild to read the file: " + e.getMessage());
+                }
+                return;
+            }
 
-                return fileContent;
+            // the next files are read on the stage pool while this one is printed
+            try (ReadAhead readAhead = new ReadAhead(files, this.stageExecutor)) {
+                for (int i = 0; i < files.size() && !out.checkError(); i++) {
+                    CommandMetrics.addBytesRead(readAhead.copyTo(i, out));
+                }
             } catch (IOException e) {
-                output = "Faild to read the file: " + e.getMessage();
-                return output;
+                printError(out, "Faild to read the file: " + e.getMessage());
             }
         }
         
-        private String wc() {
-            String output = "";
-
-            if (getArgsLength() != 1) {
-                return "You have to provide exactly one argument: wc (file)";
+        private void wc(String[] args, InputStream in, PrintStream out) {
+            boolean showLines = false, showWords = false, showBytes = false;
+            ArrayList<String> files = new ArrayList<>();
+            for (String arg : args) {
+                if (arg.startsWith("-") && arg.length() > 1) {
+                    for (int i = 1; i < arg.length(); i++) {
+                        switch (arg.charAt(i)) {
+                            case 'l': showLines = true; break;
+                            case 'w': showWords = true; break;
+                            case 'c': showBytes = true; break;
+                            default:
+                                printError(out, "Invalid argument: " + arg + " (wc takes -l, -w and -c)");
+                                return;
+                        }
+                    }
+                } else {
+                    files.add(arg);
+                }
             }
 
-            String pathString = getPathStringFromArgs(parser.args)[0];
+            if (!showLines && !showWords && !showBytes) {
+                showLines = showWords = showBytes = true;
+            }
+            if (files.isEmpty() && in != null) {
+                try {
+                    out.println(WordCounter.count(in).format(showLines, showWords, showBytes));
+                } catch (IOException e) {
+                    printError(out, "words count faild: " + e.getMessage());
+                }
+                return;
+            }
+            if (files.isEmpty()) {
+                printError(out, "You have to provide at least one file: wc [-l] [-w] [-c] (file)...");
+                return;
+            }
 
-            Path newPath = Path.of(pathString);
+            WordCounter.Counts total = WordCounter.Counts.EMPTY;
+            for (String pathString : files) {
+                Path newPath = getNewPath(Path.of(pathString));
 
-            if (getNewPath(newPath) != null) {
-                if (Files.isDirectory(newPath)) {
-                    output = pathString + " is not a file";
-                    return output;
+                if (newPath == null || Files.isDirectory(newPath)) {
+                    printError(out, "words count faild: (" + pathString +  ") is not a file");
+                    continue;
                 }
-                int numLines = 0, numWords = 0, numCharacters = 0;
                 try {
-                    FileReader fileReader = new FileReader(this.path.resolve(newPath).toString());
-                    BufferedReader bufferedReader = new BufferedReader(fileReader);
-                    String line = "";
-                    
-                    while ((line = bufferedReader.readLine()) != null) {
-                        numLines++;
-                        numWords += line.split(" ").length;
-                        numCharacters += line.length();
-                    }
-                    bufferedReader.close();
-                    fileReader.close();
+                    WordCounter.Counts counts;
+                    if (Gzip.isCompressed(newPath)) {
+                        // counts what the file holds, not the compressed bytes
+                        try (InputStream decoded = Gzip.openDecoded(newPath)) {
+                            counts = WordCounter.count(decoded);
+                        }
+                    } else {
+                        counts = WordCounter.count(newPath);
+                    }
+                    CommandMetrics.addBytesRead(counts.bytes);
+                    out.println(counts.format(showLines, showWords, showBytes) + " " + pathString);
+                    total = total.plus(counts);
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    printError(out, "words count faild: (" + pathString +  ") " + e.getMessage());
                 }
-                output = numLines + " " + numWords + " " + numCharacters + " " + pathString;
-                return output;
-            } else {
-                output = "words count faild: (" + pathString +  ") is not a file";
-                return output;
+            }
+            if (files.size() > 1) {
+                out.println(total.format(showLines, showWords, showBytes) + " total");
             }
         }
         
-        private String history() {
-            String output = "";
-            if (getArgsLength() != 0) {
-                return "history command takes no arguments";
+        // grep [-r] [-F] [-i] [-n] [-l] (pattern) [file | directory]...
+        // Without files it reads the pipe. A pattern without regex characters, or any
+        // pattern with -F, is searched as plain bytes in the memory mapped file
+        private void grep(String[] args, InputStream in, PrintStream out) {
+            boolean recursive = false, fixed = false, ignoreCase = false, lineNumbers = false, filesOnly = false;
+            List<String> operands = new ArrayList<>();
+            for (String arg : args) {
+                if (arg.startsWith("-") && arg.length() > 1 && operands.isEmpty()) {
+                    for (int i = 1; i < arg.length(); i++) {
+                        switch (arg.charAt(i)) {
+                            case 'r': recursive = true; break;
+                            case 'F': fixed = true; break;
+                            case 'i': ignoreCase = true; break;
+                            case 'n': lineNumbers = true; break;
+                            case 'l': filesOnly = true; break;
+                            default:
+                                printError(out, "Unknown option -" + arg.charAt(i) + ": grep [-r] [-F] [-i] [-n] [-l] (pattern) [file]...");
+                                return;
+                        }
+                    }
+                } else {
+                    operands.add(arg);
+                }
             }
-
-            if (this.history.size() == 0) {
-                return "No commands in history";
+            if (operands.isEmpty()) {
+                printError(out, "You have to provide a pattern: grep [-r] [-F] [-i] [-n] [-l] (pattern) [file]...");
+                return;
             }
 
-            for (int i = 0; i < this.history.size(); i++) {
-                output += i+1 + " " + this.history.elementAt(i) + "\n"; 
+            Grep grep;
+            try {
+                grep = new Grep(operands.get(0), fixed, ignoreCase, lineNumbers, filesOnly);
+            } catch (PatternSyntaxException e) {
+                printError(out, "Invalid pattern: " + e.getDescription());
+                return;
             }
-            return output;
-        }
-        // This method will choose the suitable command method to be called
-
-        private String[] getOutputFile() {
-            if (this.parser.args.length >= 2 ) {
-                if (this.parser.args[this.parser.args.length - 2].equals(">")) {
-                    String[] result = {this.parser.args[this.parser.args.length - 1], "w"};
-                    this.parser.args = Arrays.copyOf(this.parser.args, this.parser.args.length - 2);
 
-                    return result;
-                }
-                
-                if (this.parser.args[this.parser.args.length - 2].equals(">>")) {
-                    String[] result = {this.parser.args[this.parser.args.length - 1], "a"};
-                    this.parser.args = Arrays.copyOf(this.parser.args, this.parser.args.length - 2);
-
-                    return result;
+            List<String> files = operands.subList(1, operands.size());
+            if (files.isEmpty()) {
+                if (in == null) {
+                    printError(out, "You have to provide at least one file, or pipe the input into grep");
+                    return;
                 }
+                try {
+                    grep.search(in, out);
+                } catch (IOException e) {
+                    printError(out, "Faild to read the input: " + e.getMessage());
+                }
+                return;
+            }
+
+            List<FileBatch.Target> roots = new ArrayList<>();
+            for (String pathString : files) {
+                Path newPath = directory().resolve(pathString);
+                if (!recursive && Files.isDirectory(newPath)) {
+                    printError(out, "grep faild: (" + pathString + ") is a directory");
+                    continue;
+                }
+                roots.add(new FileBatch.Target(pathString, newPath));
+            }
+            // like grep, the file name is only shown when there can be more than one,
+            // or when it is all -l prints
+            boolean showNames = recursive || files.size() > 1 || filesOnly;
+            TreeWalker walker = new TreeWalker("grep");
+            walker.walk(roots, (name, file, attributes) -> {
+                if (attributes.isRegularFile()) {
+                    walker.addBytesRead(attributes.size());
+                    grep.search(file, showNames ? name : null, out);
+                    if (out.checkError()) {
+                        walker.stop();
+                    }
+                }
+            });
+            CommandMetrics.addBytesRead(walker.getBytesRead());
+            printErrors(walker.getErrors(), out);
+        }
+
+        // find [path]... [-name glob] [-type f|d] [-size [+|-]N[k|M|G]] [-mtime [+|-]days]
+        // Prints every entry below the paths that matches all the tests, as soon as it
+        // is found, so the order is not fixed
+        private void find(String[] args, PrintStream out) {
+            List<String> paths = new ArrayList<>();
+            int i = 0;
+            while (i < args.length && !args[i].startsWith("-")) {
+                paths.add(args[i++]);
+            }
+            if (paths.isEmpty()) {
+                paths.add(".");
+            }
+
+            List<BiPredicate<Path, BasicFileAttributes>> tests = new ArrayList<>();
+            for (; i < args.length; i += 2) {
+                if (i + 1 == args.length) {
+                    printError(out, args[i] + " needs a value: find [path]... [-name glob] [-type f|d] [-size [+|-]N[k|M|G]] [-mtime [+|-]days]");
+                    return;
+                }
+                String value = args[i + 1];
+                try {
+                    switch (args[i]) {
+                        case "-name":
+                            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + value);
+                            tests.add((path, attributes) -> path.getFileName() != null && matcher.matches(path.getFileName()));
+                            break;
+                        case "-type":
+                            if (!value.equals("f") && !value.equals("d")) {
+                                throw new IllegalArgumentException("-type takes f or d");
+                            }
+                            boolean directory = value.equals("d");
+                            tests.add((path, attributes) -> directory ? attributes.isDirectory() : attributes.isRegularFile());
+                            break;
+                        case "-size":
+                            tests.add(compareTest(value, true, attributes -> attributes.size()));
+                            break;
+                        case "-mtime":
+                            long now = System.currentTimeMillis();
+                            tests.add(compareTest(value, false,
+                                attributes -> (now - attributes.lastModifiedTime().toMillis()) / TimeUnit.DAYS.toMillis(1)));
+                            break;
+                        default:
+                            printError(out, "Unknown test " + args[i] + ": find [path]... [-name glob] [-type f|d] [-size [+|-]N[k|M|G]] [-mtime [+|-]days]");
+                            return;
+                    }
+                } catch (IllegalArgumentException e) {
+                    printError(out, "Invalid value for " + args[i] + ": " + value);
+                    return;
+                }
+            }
+
+            List<FileBatch.Target> roots = new ArrayList<>();
+            for (String pathString : paths) {
+                roots.add(new FileBatch.Target(pathString, directory().resolve(pathString)));
+            }
+            TreeWalker walker = new TreeWalker("find");
+            walker.walk(roots, (name, path, attributes) -> {
+                for (BiPredicate<Path, BasicFileAttributes> test : tests) {
+                    if (!test.test(path, attributes)) {
+                        return;
+                    }
+                }
+                out.println(name);
+                if (out.checkError()) {
+                    walker.stop();
+                }
+            });
+            printErrors(walker.getErrors(), out);
+        }
+
+        // "+N" means more than N, "-N" less than N and "N" exactly N. Sizes may end in
+        // k, M or G (powers of 1024) and are bytes otherwise
+        private BiPredicate<Path, BasicFileAttributes> compareTest(String value, boolean isSize, ToLongFunction<BasicFileAttributes> measure) {
+            int sign = value.startsWith("+") ? 1 : value.startsWith("-") ? -1 : 0;
+            String number = sign == 0 ? value : value.substring(1);
+            long unit = 1;
+            if (isSize && !number.isEmpty()) {
+                int suffix = "kMG".indexOf(number.charAt(number.length() - 1));
+                if (suffix >= 0) {
+                    unit = 1L << (10 * (suffix + 1));
+                    number = number.substring(0, number.length() - 1);
+                }
+            }
+            long limit = Long.parseLong(number) * unit;
+            return (path, attributes) -> {
+                long measured = measure.applyAsLong(attributes);
+                return sign > 0 ? measured > limit : sign < 0 ? measured < limit : measured == limit;
+            };
+        }
+
+        // du [-s] [-h] [--max-depth N] [path]...
+        // Prints how many bytes the files below each directory hold, subdirectories
+        // first. -s only prints the totals, -h prints sizes as KiB, MiB, ...
+        private void du(String[] args, PrintStream out) {
+            boolean human = false;
+            int maxDepth = Integer.MAX_VALUE;
+            List<String> paths = new ArrayList<>();
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-s")) {
+                    maxDepth = 0;
+                } else if (args[i].equals("-h")) {
+                    human = true;
+                } else if (args[i].equals("-sh") || args[i].equals("-hs")) {
+                    maxDepth = 0;
+                    human = true;
+                } else if (args[i].equals("--max-depth")) {
+                    try {
+                        maxDepth = Integer.parseInt(args[++i]);
+                    } catch (Exception e) {
+                        maxDepth = -1;
+                    }
+                    if (maxDepth < 0) {
+                        printError(out, "--max-depth takes a number: du [-s] [-h] [--max-depth N] [path]...");
+                        return;
+                    }
+                } else {
+                    paths.add(args[i]);
+                }
+            }
+            if (paths.isEmpty()) {
+                paths.add(".");
+            }
+
+            List<String> errors = new ArrayList<>();
+            for (String pathString : paths) {
+                DiskUsage.Node root = this.diskUsage.measure(pathString, directory().resolve(pathString), maxDepth, errors);
+                if (root != null) {
+                    printUsage(root, human, out);
+                }
+            }
+            printErrors(errors, out);
+        }
+
+        private void printUsage(DiskUsage.Node node, boolean human, PrintStream out) {
+            for (DiskUsage.Node child : node.children) {
+                printUsage(child, human, out);
+            }
+            out.println((human ? formatSize(node.size) : Long.toString(node.size)) + "\t" + node.name);
+        }
+
+        // head [-n lines] [file]...
+        private void head(String[] args, InputStream in, PrintStream out) {
+            sliceLines("head", args, in, out);
+        }
+
+        // tail [-n lines] [-f] [file]...
+        // -f keeps printing what is appended to the file until the job is killed or
+        // the output is closed, so it is meant to run with &
+        private void tail(String[] args, InputStream in, PrintStream out) {
+            sliceLines("tail", args, in, out);
+        }
+
+        private void sliceLines(String command, String[] args, InputStream in, PrintStream out) {
+            String usage = command.equals("tail") ? "tail [-n lines] [-f] [file]..." : "head [-n lines] [file]...";
+            long lines = 10;
+            boolean follow = false;
+            List<String> files = new ArrayList<>();
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-n")) {
+                    try {
+                        lines = Long.parseLong(args[++i]);
+                    } catch (Exception e) {
+                        lines = -1;
+                    }
+                    if (lines < 0) {
+                        printError(out, "-n takes the number of lines: " + usage);
+                        return;
+                    }
+                } else if (args[i].equals("-f") && command.equals("tail")) {
+                    follow = true;
+                } else {
+                    files.add(args[i]);
+                }
+            }
+
+            try {
+                if (files.isEmpty()) {
+                    if (in == null) {
+                        printError(out, "You have to provide at least one file, or pipe the input: " + usage);
+                        return;
+                    }
+                    if (command.equals("head")) {
+                        FileLines.head(in, lines, out);
+                    } else {
+                        FileLines.tail(in, lines, out);
+                    }
+                    return;
+                }
+                if (follow && files.size() != 1) {
+                    printError(out, "tail -f follows exactly one file");
+                    return;
+                }
+
+                for (int i = 0; i < files.size() && !out.checkError(); i++) {
+                    String pathString = files.get(i);
+                    Path file = directory().resolve(pathString);
+                    if (!Files.isRegularFile(file)) {
+                        printError(out, command + " faild: (" + pathString + ") is not a file");
+                        continue;
+                    }
+                    if (files.size() > 1) {
+                        out.println((i > 0 ? "\n" : "") + "==> " + pathString + " <==");
+                    }
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                        long end = command.equals("head") ? FileLines.head(channel, lines, out) : FileLines.tail(channel, lines, out);
+                        if (follow) {
+                            FileLines.follow(file, channel, end, out);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                printError(out, command + " faild: " + e.getMessage());
+            }
+        }
+
+        // history             every command line
+        // history -s pattern  the ones containing pattern
+        // history -p prefix   the ones starting with prefix
+        private void history(String[] args, PrintStream out) {
+            String pattern = null;
+            boolean prefixOnly = false;
+            if (args.length == 2 && (args[0].equals("-s") || args[0].equals("-p"))) {
+                pattern = args[1];
+                prefixOnly = args[0].equals("-p");
+            } else if (args.length != 0) {
+                printError(out, "Invalid arguments: history [-s pattern | -p prefix]");
+                return;
+            }
+
+            CommandHistory.Snapshot entries = this.history.snapshot();
+            if (entries.size() == 0) {
+                out.println("No commands in history");
+                return;
+            }
+
+            byte[] search = (pattern != null) ? pattern.getBytes(StandardCharsets.UTF_8) : null;
+            for (int i = 0; i < entries.size() && !out.checkError(); i++) {
+                if (search != null && !entries.matches(i, search, prefixOnly)) {
+                    continue;
+                }
+                out.print(i + 1);
+                out.print(' ');
+                out.println(entries.get(i));
+            }
+        }
+
+        // stats      latency, I/O and allocation percentiles per command
+        // stats -r   forgets everything recorded so far
+        private void stats(String[] args, PrintStream out) {
+            if (args.length == 1 && args[0].equals("-r")) {
+                this.metrics.reset();
+                return;
+            }
+            if (args.length != 0) {
+                printError(out, "Invalid argument: stats [-r]");
+                return;
+            }
+            this.metrics.print(out);
+        }
+        // This method will choose the suitable command method to be called
+
+        // Runs the commands of a pipeline at the same time, each one reading what the
+        // previous one writes through a bounded BytePipe. A command's own < or >
+        // redirect replaces the pipe on that side, output that is not redirected goes
+        // to console. Returns false if a redirect could not be opened, in which case
+        // nothing runs
+        private boolean runPipeline(Pipeline pipeline, PrintStream console) {
+            List<SimpleCommand> commands = pipeline.commands;
+            int size = commands.size();
+            InputStream[] inputs = new InputStream[size];
+            PrintStream[] outputs = new PrintStream[size];
+            boolean[] redirected = new boolean[size];
+            boolean started = false;
+
+            try {
+                // open every redirect first so that nothing runs if one of them fails
+                for (int i = 0; i < size; i++) {
+                    SimpleCommand command = commands.get(i);
+                    if (command.inputFile != null && (inputs[i] = openInput(command.inputFile, console)) == null) {
+                        return false;
+                    }
+                    if (command.outputFile != null) {
+                        if ((outputs[i] = openOutput(command.outputFile, command.append, console)) == null) {
+                            return false;
+                        }
+                        redirected[i] = true;
+                    }
+                }
+                for (int i = 0; i < size - 1; i++) {
+                    if (outputs[i] == null) {
+                        BytePipe pipe = new BytePipe(PIPE_BUFFER_SIZE);
+                        outputs[i] = new PrintStream(new BufferedOutputStream(pipe.getOutputStream(), COPY_BUFFER_SIZE), false, StandardCharsets.UTF_8);
+                        if (inputs[i + 1] == null) {
+                            inputs[i + 1] = pipe.getInputStream();
+                        } else {
+                            pipe.getInputStream().close();
+                        }
+                    } else if (inputs[i + 1] == null) {
+                        // the previous command writes into a file, there is nothing to read
+                        inputs[i + 1] = InputStream.nullInputStream();
+                    }
+                }
+                if (outputs[size - 1] == null) {
+                    outputs[size - 1] = console;
+                }
+
+                started = true;
+                // the stages belong to the same job as this thread, if any
+                Job job = Job.current();
+                List<Future<?>> running = new ArrayList<>();
+                for (int i = 0; i < size - 1; i++) {
+                    SimpleCommand command = commands.get(i);
+                    InputStream stageIn = inputs[i];
+                    PrintStream stageOut = outputs[i];
+                    boolean stageRedirected = redirected[i];
+                    running.add(stageExecutor.submit(() -> Job.runAs(job, () -> {
+                        try {
+                            runStage(command, stageIn, stageOut);
+                        } finally {
+                            // a pipe gets its end of input, a file is flushed and closed
+                            if (stageRedirected) {
+                                closeOutput(stageOut, console);
+                            } else {
+                                stageOut.close();
+                            }
+                        }
+                    })));
+                }
+
+                try {
+                    runStage(commands.get(size - 1), inputs[size - 1], outputs[size - 1]);
+                } finally {
+                    closeOutput(outputs[size - 1], console);
+                }
+
+                for (Future<?> stage : running) {
+                    try {
+                        stage.get();
+                    } catch (InterruptedException e) {
+                        // the job was killed, the stages stop at their next check
+                        for (Future<?> other : running) {
+                            other.cancel(true);
+                        }
+                        Thread.currentThread().interrupt();
+                        break;
+                    } catch (ExecutionException e) {
+                        printError(console, "Pipeline stage faild: " + e.getCause());
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                printError(console, "Could not start the pipeline: " + e.getMessage());
+                return false;
+            } finally {
+                if (!started) {
+                    for (int i = 0; i < size; i++) {
+                        closeQuietly(inputs[i]);
+                        if (outputs[i] != null && outputs[i] != console) {
+                            outputs[i].close();
+                        }
+                    }
+                }
+            }
+        }
+
+        // Closing the input afterwards tells the previous stage nobody reads anymore
+        private void runStage(SimpleCommand command, InputStream in, PrintStream out) {
+            try {
+                this.metrics.execute(command.name, this.commandMap.get(command.name), command.args, in, out);
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        private void closeQuietly(InputStream in) {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing left to read from it anyway
+                }
+            }
+        }
+
+        private InputStream openInput(String inputFile, PrintStream console) {
+            try {
+                return new BufferedInputStream(Files.newInputStream(directory().resolve(inputFile)), COPY_BUFFER_SIZE);
+            } catch (IOException e) {
+                printError(console, "Could not read the input file: " + inputFile);
+                return null;
+            }
+        }
+
+        // Opens the target of a > (truncate) or >> (append) redirect
+        private PrintStream openOutput(String outputFilePath, boolean append, PrintStream console) {
+            Path newPath = directory().resolve(outputFilePath);
+
+            // the redirect may create the file
+            invalidatePath(newPath);
+            try {
+                return new PrintStream(this.redirects.open(newPath, append), false, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                printError(console, "Could not write / append the output to the file: " + e.getMessage());
+                return null;
+            }
+        }
+
+        private void closeOutput(PrintStream out, PrintStream console) {
+            if (out == console) {
+                out.flush();
+                return;
+            }
+            out.close();
+            if (out.checkError()) {
+                printError(console, "Could not write / append the output to the file");
+            }
+        }
+
+        // Prints an error message into the command's output like every command always
+        // did, and remembers that the current command line failed
+        private void printError(PrintStream out, String message) {
+            Job job = Job.current();
+            if (job != null) {
+                job.markFailed();
+            } else {
+                this.commandFailed = true;
+            }
+            out.println(message);
+        }
+
+        public boolean chooseCommandAction(){
+            System.out.println();
+            System.out.print(path.toString() + "> ");
+            String input = System.console().readLine();
+            // end of input (ctrl-D) closes the shell like exit
+            if (input == null) {
+                return false;
+            }
+            runCommandLine(input);
+            return !this.exitRequested;
+        }
+
+        // Parses and runs one command line, returns false if any part of it failed.
+        // The pipelines of a ";" list run one after the other, an "exit" stops
+        // the list and sets exitRequested
+        public boolean runCommandLine(String input) {
+            this.commandFailed = false;
+            // until the line parsed, so "echo \"oops" and an unknown !99 are not
+            // counted for the command of the line before
+            this.lastCommandName = "<syntax error>";
+            reportFinishedJobs(this.console);
+            if (input.startsWith("!")) {
+                String replayed = this.history.expand(input.trim());
+                if (replayed == null) {
+                    printError(this.console, "No such command in history: " + input.trim());
+                    return false;
+                }
+                this.console.println(replayed);
+                input = replayed;
+            }
+            CommandLine commandLine;
+            try {
+                if (!this.parser.parse(input)) {
+                    return true;
+                }
+                commandLine = this.parser.getCommandLine();
+                this.lastCommandName = this.parser.getCommandName();
+            } catch (IllegalArgumentException e) {
+                printError(this.console, e.getMessage());
+                return false;
+            }
+
+            boolean succeeded = true;
+            for (Pipeline pipeline : commandLine.pipelines) {
+                if (pipeline.commands.get(0).name.equals("exit")) {
+                    this.exitRequested = true;
+                    break;
+                }
+                succeeded &= runPipelineChecked(pipeline);
+            }
+            this.history.add(input);
+            return succeeded && !this.commandFailed;
+        }
+
+        private boolean runPipelineChecked(Pipeline pipeline) {
+            List<Path> namedPaths = new ArrayList<>();
+            for (SimpleCommand command : pipeline.commands) {
+                if (!this.commandMap.containsKey(command.name)) {
+                    printError(this.console, "This command is not available: " + command.name);
+                    return false;
+                }
+                for (String arg : command.args) {
+                    namedPaths.add(directory().resolve(arg));
+                }
+                if (command.inputFile != null) {
+                    namedPaths.add(directory().resolve(command.inputFile));
+                }
+            }
+            // output still sitting in a pooled redirect must be in the file before
+            // a command reads, copies or removes that file
+            this.redirects.releaseUnder(namedPaths);
+            if (pipeline.background) {
+                startJob(pipeline);
+                return true;
+            }
+            return runPipeline(pipeline, this.console);
+        }
+
+        private void startJob(Pipeline pipeline) {
+            Job job;
+            synchronized (this.jobs) {
+                // numbering starts over once every job has been reported, like in bash
+                if (this.jobs.isEmpty()) {
+                    this.nextJobId = 1;
+                }
+                job = new Job(this.nextJobId++, pipeline.describe(), this.path);
+                this.jobs.put(job.id, job);
+            }
+            this.console.println("[" + job.id + "] " + job.command);
+            job.start(this.jobExecutor, () -> runPipeline(pipeline, job.output));
+        }
+
+        // Prints the jobs that finished since the last report with their output and
+        // forgets them
+        private void reportFinishedJobs(PrintStream out) {
+            List<Job> finished = new ArrayList<>();
+            synchronized (this.jobs) {
+                Iterator<Job> iterator = this.jobs.values().iterator();
+                while (iterator.hasNext()) {
+                    Job job = iterator.next();
+                    if (job.isFinished()) {
+                        finished.add(job);
+                        iterator.remove();
+                    }
+                }
+            }
+            for (Job job : finished) {
+                out.println("[" + job.id + "] " + job.state() + "  " + job.command);
+                job.printOutput(out);
+            }
+        }
+
+        private List<Job> currentJobs() {
+            synchronized (this.jobs) {
+                return new ArrayList<>(this.jobs.values());
+            }
+        }
+
+        private Job findJob(String spec, String command, PrintStream out) {
+            Job job = null;
+            if (spec.startsWith("%")) {
+                try {
+                    int id = Integer.parseInt(spec.substring(1));
+                    synchronized (this.jobs) {
+                        job = this.jobs.get(id);
+                    }
+                } catch (NumberFormatException e) {
+                    // reported below
+                }
+            }
+            if (job == null) {
+                printError(out, command + " faild: (" + spec + ") no such job");
+            }
+            return job;
+        }
+
+        private void jobs(String[] args, PrintStream out) {
+            if (args.length != 0) {
+                printError(out, "jobs takes no arguments");
+                return;
+            }
+            for (Job job : currentJobs()) {
+                if (!job.isFinished()) {
+                    out.println("[" + job.id + "] " + job.state() + "  " + job.command);
+                }
+            }
+            reportFinishedJobs(out);
+        }
+
+        // wait [%n]: waits for one job or for all of them
+        private void await(String[] args, PrintStream out) {
+            if (args.length > 1) {
+                printError(out, "You have to provide no or one argument: wait [%job]");
+                return;
+            }
+            List<Job> waitFor = currentJobs();
+            if (args.length == 1) {
+                Job job = findJob(args[0], "wait", out);
+                if (job == null) {
+                    return;
+                }
+                waitFor = List.of(job);
+            }
+            try {
+                for (Job job : waitFor) {
+                    job.awaitFinished();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            reportFinishedJobs(out);
+        }
+
+        // kill %n: asks a job to stop, it does so at the next chunk it copies or reads
+        private void kill(String[] args, PrintStream out) {
+            if (args.length != 1) {
+                printError(out, "You have to provide exactly one argument: kill %job");
+                return;
+            }
+            Job job = findJob(args[0], "kill", out);
+            if (job != null) {
+                job.cancel();
+            }
+        }
+
+        // Waits for every job, used before a script ends. Returns false if one failed
+        private boolean waitForJobs() {
+            boolean succeeded = true;
+            for (Job job : currentJobs()) {
+                try {
+                    job.awaitFinished();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                succeeded &= job.state().equals("Done");
+            }
+            reportFinishedJobs(this.console);
+            return succeeded;
+        }
+
+        // Writes out everything still buffered for redirects and closes the files,
+        // the directory watches and the thread pools
+        public void close() {
+            this.redirects.close();
+            this.listingCache.close();
+            this.stageExecutor.shutdown();
+            this.jobExecutor.shutdownNow();
+        }
+
+        // Starts the shell in directory, e.g. where the client of a server runs
+        public void setDirectory(Path directory) {
+            if (Files.isDirectory(directory)) {
+                this.path = directory.toAbsolutePath().normalize();
+            }
+        }
+
+        // Runs every line of the script without printing prompts. Empty lines and
+        // lines starting with # are skipped. Returns the exit status: 0 when every
+        // line succeeded, 1 otherwise
+        public int runBatch(BufferedReader script, boolean exitOnError, boolean showTimings) throws IOException {
+            return runBatch(script, exitOnError, showTimings, System.err);
+        }
+
+        // Like runBatch, with the timings and the line that stopped the script going
+        // to "diagnostics" instead of stderr
+        public int runBatch(BufferedReader script, boolean exitOnError, boolean showTimings, PrintStream diagnostics) throws IOException {
+            TimingSummary timings = new TimingSummary();
+            boolean anyFailed = false;
+            String line;
+            int lineNumber = 0;
+            try {
+                while ((line = script.readLine()) != null) {
+                    lineNumber++;
+                    String trimmed = line.trim();
+                    if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                        continue;
+                    }
+
+                    long start = System.nanoTime();
+                    boolean succeeded = runCommandLine(line);
+                    timings.record(this.lastCommandName, System.nanoTime() - start, succeeded);
+
+                    if (this.exitRequested) {
+                        break;
+                    }
+                    if (!succeeded) {
+                        anyFailed = true;
+                        if (exitOnError) {
+                            this.console.flush();
+                            diagnostics.println("Stopped at line " + lineNumber + ": " + line);
+                            break;
+                        }
+                    }
+                    // lines typed or sent one at a time get their output right away,
+                    // a script that is already read ahead is only flushed when the buffer fills
+                    if (!script.ready()) {
+                        this.console.flush();
+                    }
+                }
+                if (!waitForJobs()) {
+                    anyFailed = true;
+                }
+            } finally {
+                this.console.flush();
+            }
+
+            if (showTimings) {
+                timings.print(diagnostics);
+            }
+            return anyFailed ? 1 : 0;
+        }
+    }
+
+    // Sorted directory listings for ls, keyed by the real path of the directory.
+    // A listing is dropped when the WatchService reports a change in its directory,
+    // when the shell itself changes the directory, or when it is older than the TTL
+    // (which is short for file systems that cannot be watched). Only the most
+    // recently used MAX_DIRECTORIES listings are kept
+    static class DirectoryCache {
+
+        private static final int MAX_DIRECTORIES = 64;
+        // directories with more entries than this are not cached, list returns null
+        static final int MAX_ENTRIES = 100_000;
+        private static final long WATCHED_TTL_NANOS = 60_000_000_000L;
+        private static final long UNWATCHED_TTL_NANOS = 2_000_000_000L;
+
+        private static class Listing {
+            final String[] names;
+            final long loadedAt = System.nanoTime();
+            final WatchKey watchKey;
+
+            Listing(String[] names, WatchKey watchKey) {
+                this.names = names;
+                this.watchKey = watchKey;
+            }
+
+            boolean isExpired() {
+                long ttl = (watchKey != null) ? WATCHED_TTL_NANOS : UNWATCHED_TTL_NANOS;
+                return System.nanoTime() - loadedAt > ttl;
+            }
+        }
+
+        private final LinkedHashMap<Path, Listing> listings = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Listing> eldest) {
+                if (size() > MAX_DIRECTORIES) {
+                    cancel(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        private WatchService watchService;
+        private boolean watchServiceFailed = false;
+
+        public synchronized void close() {
+            listings.clear();
+            if (watchService != null) {
+                try {
+                    watchService.close();
+                } catch (IOException e) {
+                    // the watches go away with it anyway
+                }
+                watchService = null;
+            }
+            // later lookups still work, just without watching
+            watchServiceFailed = true;
+        }
+
+        // Returns the names in the directory sorted by name, or null if there are
+        // more than MAX_ENTRIES of them. The array is shared, callers must not change it
+        public synchronized String[] list(Path directory) throws IOException {
+            Path key = directory.toRealPath();
+            processEvents();
+
+            Listing listing = listings.get(key);
+            if (listing != null && !listing.isExpired()) {
+                return listing.names;
+            }
+            remove(key);
+
+            // watch before reading, a change in between then only costs one extra reload
+            WatchKey watchKey = watch(key);
+            String[] names;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(key)) {
+                List<String> entries = new ArrayList<>();
+                for (Path entry : stream) {
+                    if (entries.size() == MAX_ENTRIES) {
+                        if (watchKey != null) {
+                            watchKey.cancel();
+                        }
+                        return null;
+                    }
+                    entries.add(entry.getFileName().toString());
+                }
+                names = entries.toArray(new String[0]);
+            } catch (IOException e) {
+                if (watchKey != null) {
+                    watchKey.cancel();
+                }
+                throw e;
+            }
+            Arrays.sort(names);
+            listings.put(key, new Listing(names, watchKey));
+            return names;
+        }
+
+        // Called after the shell created, deleted or overwrote "changed": drops the
+        // listing of its parent and of every cached directory at or below it
+        public synchronized void invalidate(Path changed) {
+            Path normalized = changed.toAbsolutePath().normalize();
+            Path parent = normalized.getParent();
+            Iterator<Map.Entry<Path, Listing>> entries = listings.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Path, Listing> entry = entries.next();
+                if (entry.getKey().equals(parent) || entry.getKey().startsWith(normalized)) {
+                    cancel(entry.getValue());
+                    entries.remove();
+                }
+            }
+        }
+
+        private WatchKey watch(Path directory) {
+            if (watchService == null && !watchServiceFailed) {
+                try {
+                    watchService = FileSystems.getDefault().newWatchService();
+                } catch (IOException | UnsupportedOperationException e) {
+                    watchServiceFailed = true;
+                }
+            }
+            if (watchService == null) {
+                return null;
+            }
+            try {
+                return directory.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            } catch (IOException | UnsupportedOperationException e) {
+                // e.g. some network file systems, the TTL has to do
+                return null;
+            }
+        }
+
+        // Drops the listings of every directory the WatchService saw changing
+        private void processEvents() {
+            if (watchService == null) {
+                return;
+            }
+            WatchKey watchKey;
+            while ((watchKey = watchService.poll()) != null) {
+                watchKey.pollEvents();
+                remove((Path) watchKey.watchable());
+                watchKey.cancel();
+            }
+        }
+
+        private void remove(Path key) {
+            Listing listing = listings.remove(key);
+            if (listing != null) {
+                cancel(listing);
+            }
+        }
+
+        private static void cancel(Listing listing) {
+            if (listing.watchKey != null) {
+                listing.watchKey.cancel();
+            }
+        }
+    }
+
+    // Sorts more directory entries than should be kept in memory. Sorted runs of at
+    // most runSize names are written to temp files, then read back merged through a
+    // priority queue that holds one name per run
+    static class ExternalSort implements Iterator<String>, Closeable {
+
+        private final List<Path> runFiles = new ArrayList<>();
+        private final List<DataInputStream> runs = new ArrayList<>();
+        private final Comparator<String> order;
+        private PriorityQueue<Run> heads;
+        // when everything fit into a single run no temp file is written
+        private Iterator<String> inMemory;
+
+        // A run file being merged, "name" is its smallest name not returned yet
+        private static class Run {
+            final DataInputStream in;
+            int remaining;
+            String name;
+
+            Run(DataInputStream in) throws IOException {
+                this.in = in;
+                this.remaining = in.readInt();
+            }
+
+            // Moves to the next name, returns false at the end of the run
+            boolean advance() throws IOException {
+                if (remaining == 0) {
+                    return false;
+                }
+                remaining--;
+                name = in.readUTF();
+                return true;
+            }
+        }
+
+        private ExternalSort(Comparator<String> order) {
+            this.order = order;
+        }
+
+        static ExternalSort sort(Iterator<Path> entries, Comparator<String> order, int runSize) throws IOException {
+            ExternalSort sort = new ExternalSort(order);
+            try {
+                List<String> run = new ArrayList<>();
+                while (entries.hasNext()) {
+                    run.add(entries.next().getFileName().toString());
+                    if (run.size() == runSize) {
+                        sort.spill(run);
+                        run.clear();
+                    }
+                }
+                run.sort(order);
+                if (sort.runFiles.isEmpty()) {
+                    sort.inMemory = run.iterator();
+                    return sort;
+                }
+                if (!run.isEmpty()) {
+                    sort.spill(run);
+                }
+                sort.startMerge();
+                return sort;
+            } catch (IOException | RuntimeException e) {
+                sort.close();
+                throw e;
+            }
+        }
+
+        private void spill(List<String> run) throws IOException {
+            run.sort(order);
+            Path runFile = Files.createTempFile("ls-run", ".tmp");
+            runFiles.add(runFile);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(runFile)))) {
+                out.writeInt(run.size());
+                for (String name : run) {
+                    out.writeUTF(name);
+                }
+            }
+        }
+
+        private void startMerge() throws IOException {
+            heads = new PriorityQueue<>(runFiles.size(), (a, b) -> order.compare(a.name, b.name));
+            for (Path runFile : runFiles) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(runFile)));
+                runs.add(in);
+                Run run = new Run(in);
+                if (run.advance()) {
+                    heads.add(run);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return (inMemory != null) ? inMemory.hasNext() : !heads.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            if (inMemory != null) {
+                return inMemory.next();
+            }
+            Run head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            String name = head.name;
+            try {
+                if (head.advance()) {
+                    heads.add(head);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return name;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (DataInputStream run : runs) {
+                run.close();
+            }
+            for (Path runFile : runFiles) {
+                Files.deleteIfExists(runFile);
+            }
+        }
+    }
+
+    // Records every command run through commandMap: wall time, bytes read and written
+    // and bytes allocated by the command's thread, each into a histogram per command
+    // name. Every run is also a JFR event, which only costs something while a flight
+    // recording is enabled, e.g. with -XX:StartFlightRecording
+    static class CommandMetrics {
+
+        // bytes the command running on this thread read or wrote besides its input and output streams
+        private static final ThreadLocal<long[]> FILE_BYTES = new ThreadLocal<>();
+
+        private final Map<String, CommandStats> commands = new ConcurrentHashMap<>();
+        private final com.sun.management.ThreadMXBean threads = allocationCounter();
+
+        private static class CommandStats {
+            final Histogram wallNanos = new Histogram();
+            final Histogram bytesRead = new Histogram();
+            final Histogram bytesWritten = new Histogram();
+            final Histogram allocatedBytes = new Histogram();
+        }
+
+        @Name("CLI.Command")
+        @Label("Shell Command")
+        @Category("CLI")
+        static class CommandEvent extends Event {
+            @Label("Command")
+            String commandName;
+            @Label("Arguments")
+            String args;
+            @Label("Bytes Read")
+            @DataAmount
+            long bytesRead;
+            @Label("Bytes Written")
+            @DataAmount
+            long bytesWritten;
+            @Label("Allocated")
+            @DataAmount
+            long allocatedBytes;
+        }
+
+        private static com.sun.management.ThreadMXBean allocationCounter() {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+                if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                    return threads;
+                }
+            }
+            return null;
+        }
+
+        // Lets a command count the file bytes it handles itself, e.g. what cp copied
+        static void addBytesRead(long bytes) {
+            long[] counters = FILE_BYTES.get();
+            if (counters != null) {
+                counters[0] += bytes;
+            }
+        }
+
+        static void addBytesWritten(long bytes) {
+            long[] counters = FILE_BYTES.get();
+            if (counters != null) {
+                counters[1] += bytes;
+            }
+        }
+
+        public void execute(String commandName, Command command, String[] args, InputStream in, PrintStream out) {
+            CountingInputStream countedIn = (in != null) ? new CountingInputStream(in) : null;
+            CountingOutputStream countedOut = new CountingOutputStream(out);
+            PrintStream countedPrint = new PrintStream(countedOut, false, StandardCharsets.UTF_8);
+            long[] fileBytes = new long[2];
+            long threadId = Thread.currentThread().getId();
+
+            CommandEvent event = new CommandEvent();
+            event.begin();
+            FILE_BYTES.set(fileBytes);
+            long allocatedBefore = (threads != null) ? threads.getThreadAllocatedBytes(threadId) : 0;
+            long start = System.nanoTime();
+            try {
+                command.execute(args, countedIn, countedPrint);
+            } finally {
+                countedPrint.flush();
+                long wallNanos = System.nanoTime() - start;
+                long allocated = (threads != null) ? threads.getThreadAllocatedBytes(threadId) - allocatedBefore : 0;
+                FILE_BYTES.remove();
+                long bytesRead = fileBytes[0] + ((countedIn != null) ? countedIn.count : 0);
+                long bytesWritten = fileBytes[1] + countedOut.count;
+
+                CommandStats stats = commands.computeIfAbsent(commandName, name -> new CommandStats());
+                stats.wallNanos.record(wallNanos);
+                stats.bytesRead.record(bytesRead);
+                stats.bytesWritten.record(bytesWritten);
+                stats.allocatedBytes.record(allocated);
+
+                event.end();
+                if (event.shouldCommit()) {
+                    event.commandName = commandName;
+                    event.args = String.join(" ", args);
+                    event.bytesRead = bytesRead;
+                    event.bytesWritten = bytesWritten;
+                    event.allocatedBytes = allocated;
+                    event.commit();
+                }
+            }
+        }
+
+        public void reset() {
+            commands.clear();
+        }
+
+        public void print(PrintStream out) {
+            if (commands.isEmpty()) {
+                out.println("No commands recorded");
+                return;
+            }
+            out.printf("%-8s %7s %10s %10s %10s %10s %10s %10s %10s%n", "command", "count",
+                "p50 ms", "p90 ms", "p99 ms", "max ms", "read", "written", "allocated");
+            List<String> names = new ArrayList<>(commands.keySet());
+            names.sort(null);
+            for (String name : names) {
+                CommandStats stats = commands.get(name);
+                out.printf("%-8s %7d %10.3f %10.3f %10.3f %10.3f %10s %10s %10s%n", name, stats.wallNanos.getCount(),
+                    stats.wallNanos.getPercentile(50) / 1e6, stats.wallNanos.getPercentile(90) / 1e6,
+                    stats.wallNanos.getPercentile(99) / 1e6, stats.wallNanos.getMax() / 1e6,
+                    formatSize(stats.bytesRead.getTotal()), formatSize(stats.bytesWritten.getTotal()),
+                    formatSize(stats.allocatedBytes.getTotal()));
+            }
+        }
+
+        private static class CountingInputStream extends FilterInputStream {
+            long count = 0;
+
+            CountingInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    count++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                int read = super.read(bytes, offset, length);
+                if (read > 0) {
+                    count += read;
+                }
+                return read;
+            }
+        }
+
+        // Counts what reaches the command's PrintStream. A PrintStream hides write
+        // errors, so flush turns the target's error state back into an IOException
+        // for the counting PrintStream to see
+        private static class CountingOutputStream extends OutputStream {
+            private final PrintStream target;
+            long count = 0;
+
+            CountingOutputStream(PrintStream target) {
+                this.target = target;
+            }
+
+            @Override
+            public void write(int b) {
+                target.write(b);
+                count++;
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                target.write(bytes, offset, length);
+                count += length;
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (target.checkError()) {
+                    throw new IOException("Output closed");
+                }
+            }
+        }
+    }
+
+    // A log-linear histogram in the style of HdrHistogram: values are bucketed by
+    // their highest bit with linear steps in between, so every recorded value is
+    // kept to within about 3% at a fixed 2k longs per histogram
+    static class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 6;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+        private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 2) * HALF_SUB_BUCKETS];
+        private long count = 0;
+        private long total = 0;
+        private long max = 0;
+
+        public synchronized void record(long value) {
+            value = Math.max(value, 0);
+            counts[indexOf(value)]++;
+            count++;
+            total += value;
+            max = Math.max(max, value);
+        }
+
+        // Values below SUB_BUCKETS get a bucket each. Above that the value is shifted
+        // right until it fits in [SUB_BUCKETS / 2, SUB_BUCKETS), and every shift
+        // count gets its own HALF_SUB_BUCKETS buckets
+        private static int indexOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS + 1;
+            return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+        }
+
+        // The highest value that lands in the bucket
+        private static long highestValueAt(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / HALF_SUB_BUCKETS - 1;
+            long subBucket = index % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+            return ((subBucket + 1) << shift) - 1;
+        }
+
+        public synchronized long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long wanted = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= wanted) {
+                    return Math.min(highestValueAt(i), max);
+                }
+            }
+            return max;
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getTotal() {
+            return total;
+        }
+
+        public synchronized long getMax() {
+            return max;
+        }
+    }
+
+    // Runs one filesystem operation per target (mkdir, touch, rm, ...) on a small
+    // worker pool. A failing target does not stop the others, the errors are
+    // collected and the command prints them once the whole batch is done
+    static class FileBatch {
+
+        // the operations mostly wait on the filesystem, so more workers than cores
+        static final int WORKERS = Math.max(4, Math.min(16, 2 * Runtime.getRuntime().availableProcessors()));
+        public static final int MAX_REPORTED_ERRORS = 20;
+
+        static class Target {
+            // the argument as the user wrote it, used in messages
+            final String name;
+            final Path path;
+
+            Target(String name, Path path) {
+                this.name = name;
+                this.path = path;
+            }
+        }
+
+        interface Operation {
+            void apply(String target, Path path) throws IOException;
+        }
+
+        interface ErrorMessage {
+            String describe(String target, IOException e);
+        }
+
+        private final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger failedTargets = new AtomicInteger();
+        private final Job job = Job.current();
+
+        public void run(List<Target> targets, Operation operation, ErrorMessage message) {
+            // a single target is not worth starting the workers for
+            if (targets.size() == 1) {
+                apply(targets.get(0), operation, message);
+                return;
+            }
+            List<RecursiveAction> tasks = new ArrayList<>();
+            for (Target target : targets) {
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        apply(target, operation, message);
+                    }
+                });
+            }
+            invoke(tasks);
+        }
+
+        private void apply(Target target, Operation operation, ErrorMessage message) {
+            try {
+                Job.checkCancelled(job);
+                operation.apply(target.name, target.path);
+            } catch (IOException e) {
+                errors.add(message.describe(target.name, e));
+                failedTargets.incrementAndGet();
+            }
+        }
+
+        // Deletes each target with everything below it. Subdirectories are emptied in
+        // parallel and a directory is removed once all its children are gone
+        public void deleteTrees(List<Target> targets, ErrorMessage message) {
+            List<RecursiveAction> tasks = new ArrayList<>();
+            for (Target target : targets) {
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        if (!Files.exists(target.path, LinkOption.NOFOLLOW_LINKS)) {
+                            errors.add(message.describe(target.name, new NoSuchFileException(target.name)));
+                            failedTargets.incrementAndGet();
+                            return;
+                        }
+                        DeleteTreeTask tree = new DeleteTreeTask(target.name, target.path, message);
+                        tree.compute();
+                        if (!tree.deleted) {
+                            failedTargets.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            invoke(tasks);
+        }
+
+        private void invoke(List<RecursiveAction> tasks) {
+            ForkJoinPool pool = new ForkJoinPool(WORKERS);
+            try {
+                pool.invoke(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        invokeAll(tasks);
+                    }
+                });
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        class DeleteTreeTask extends RecursiveAction {
+
+            private static final long serialVersionUID = 1L;
+
+            // the entry as shown in messages
+            private final String name;
+            private final Path path;
+            private final ErrorMessage message;
+            boolean deleted = false;
+
+            DeleteTreeTask(String name, Path path, ErrorMessage message) {
+                this.name = name;
+                this.path = path;
+                this.message = message;
+            }
+
+            @Override
+            protected void compute() {
+                if (job != null && job.cancelled) {
+                    return;
+                }
+                // links are removed, never followed into
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    List<DeleteTreeTask> children = new ArrayList<>();
+                    try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                        for (Path entry : stream) {
+                            children.add(new DeleteTreeTask(name + "/" + entry.getFileName(), entry, message));
+                        }
+                    } catch (IOException e) {
+                        errors.add(message.describe(name, e));
+                        return;
+                    }
+                    invokeAll(children);
+                    for (DeleteTreeTask child : children) {
+                        if (!child.deleted) {
+                            // the child's error is already reported, the directory can not be empty
+                            return;
+                        }
+                    }
+                }
+                try {
+                    Files.delete(path);
+                    deleted = true;
+                } catch (IOException e) {
+                    errors.add(message.describe(name, e));
+                }
+            }
+        }
+
+        public List<String> getErrors() {
+            return new ArrayList<>(errors);
+        }
+
+        public int getFailedTargets() {
+            return failedTargets.get();
+        }
+    }
+
+    // A pipeline started with a trailing &. It runs on its own thread and writes
+    // into a buffer that the shell prints once the job is done, so it never mixes
+    // with the output of the command in front. kill only sets a flag (and wakes the
+    // job up if it waits); the copy and read loops check it between chunks with
+    // checkCancelled and give up with an InterruptedIOException
+    static class Job {
+
+        private static final ThreadLocal<Job> CURRENT = new ThreadLocal<>();
+        // output beyond this is dropped and only counted
+        private static final int MAX_OUTPUT = 1024 * 1024;
+
+        final int id;
+        final String command;
+        // the working directory when the job was started
+        final Path directory;
+        final PrintStream output;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private long droppedBytes = 0;
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile boolean cancelled = false;
+        private volatile boolean failed = false;
+        private volatile Future<?> future;
+
+        Job(int id, String command, Path directory) {
+            this.id = id;
+            this.command = command;
+            this.directory = directory;
+            this.output = new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) {
+                    synchronized (buffer) {
+                        int kept = Math.max(0, Math.min(length, MAX_OUTPUT - buffer.size()));
+                        buffer.write(bytes, offset, kept);
+                        droppedBytes += length - kept;
+                    }
+                }
+            }, true, StandardCharsets.UTF_8);
+        }
+
+        // The job the calling thread works for, null in the foreground
+        static Job current() {
+            return CURRENT.get();
+        }
+
+        // Runs task on the calling thread on behalf of job
+        static void runAs(Job job, Runnable task) {
+            Job previous = CURRENT.get();
+            CURRENT.set(job);
+            try {
+                task.run();
+            } finally {
+                CURRENT.set(previous);
+            }
+        }
+
+        // For loops on the job's own threads
+        static void checkCancelled() throws InterruptedIOException {
+            checkCancelled(CURRENT.get());
+        }
+
+        // For worker pools, which capture the job when the work is handed to them
+        static void checkCancelled(Job job) throws InterruptedIOException {
+            if (job != null && job.cancelled) {
+                throw new InterruptedIOException("Killed");
+            }
+        }
+
+        void start(ExecutorService executor, BooleanSupplier pipeline) {
+            // whoever takes this first counts "finished" down: the task when it runs, or
+            // done() when kill cancelled the task before a thread picked it up
+            AtomicBoolean claimed = new AtomicBoolean(false);
+            FutureTask<Void> task = new FutureTask<>(() -> {
+                if (!claimed.compareAndSet(false, true)) {
+                    return;
+                }
+                runAs(this, () -> {
+                    try {
+                        if (!pipeline.getAsBoolean()) {
+                            markFailed();
+                        }
+                    } catch (RuntimeException e) {
+                        output.println("Job faild: " + e);
+                        markFailed();
+                    } finally {
+                        output.flush();
+                        finished.countDown();
+                    }
+                });
+            }, null) {
+                @Override
+                protected void done() {
+                    if (claimed.compareAndSet(false, true)) {
+                        finished.countDown();
+                    }
+                }
+            };
+            future = task;
+            executor.execute(task);
+        }
+
+        void markFailed() {
+            failed = true;
+        }
+
+        void cancel() {
+            cancelled = true;
+            Future<?> running = future;
+            if (running != null) {
+                running.cancel(true);
+            }
+        }
+
+        boolean isFinished() {
+            return finished.getCount() == 0;
+        }
+
+        void awaitFinished() throws InterruptedException {
+            finished.await();
+        }
+
+        String state() {
+            if (!isFinished()) {
+                return "Running";
+            }
+            if (cancelled) {
+                return "Killed";
+            }
+            return failed ? "Failed" : "Done";
+        }
+
+        void printOutput(PrintStream out) {
+            synchronized (buffer) {
+                out.write(buffer.toByteArray(), 0, buffer.size());
+                if (droppedBytes > 0) {
+                    out.println("(" + droppedBytes + " more bytes of output were dropped)");
+                }
+            }
+        }
+    }
+
+    // Remembers what toRealPath returned for a path, keyed by the argument resolved
+    // against the working directory, which identifies (cwd, argument). Only paths
+    // that exist are kept. The shell drops the entries at or below a path it changes
+    // itself; changes made from outside are picked up after TTL_NANOS
+    static class PathCache {
+
+        private static final int MAX_PATHS = 1024;
+        private static final long TTL_NANOS = 5_000_000_000L;
+
+        private static class Entry {
+            final Path realPath;
+            final long resolvedAt = System.nanoTime();
+
+            Entry(Path realPath) {
+                this.realPath = realPath;
+            }
+        }
+
+        private final LinkedHashMap<Path, Entry> paths = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+                return size() > MAX_PATHS;
+            }
+        };
+
+        public synchronized Path get(Path resolved) {
+            Entry entry = paths.get(resolved);
+            if (entry == null) {
+                return null;
+            }
+            if (System.nanoTime() - entry.resolvedAt > TTL_NANOS) {
+                paths.remove(resolved);
+                return null;
+            }
+            return entry.realPath;
+        }
+
+        public synchronized void put(Path resolved, Path realPath) {
+            paths.put(resolved, new Entry(realPath));
+        }
+
+        // Drops every entry whose path, as given or as resolved, is at or below
+        // "changed". A symlink that was removed or replaced takes the paths
+        // through it along
+        public synchronized void invalidate(Path changed) {
+            Path normalized = changed.toAbsolutePath().normalize();
+            paths.entrySet().removeIf(entry ->
+                entry.getKey().normalize().startsWith(normalized) || entry.getValue().realPath.startsWith(normalized));
+        }
+
+        public synchronized void clear() {
+            paths.clear();
+        }
+    }
+
+    // gzip for cat, wc and cp --compress. A file is recognised by the gzip magic
+    // bytes, not its name. Reading is pipelined: a reader thread fills direct buffers
+    // from the file while the caller's thread inflates the previous ones, so the
+    // disk and the CPU work at the same time. Compressing feeds direct buffers
+    // straight to a Deflater and writes the gzip header and trailer itself. The
+    // direct buffers are pooled, they are expensive to allocate and free
+    static class Gzip {
+
+        private static final int BUFFER_SIZE = 64 * 1024;
+        private static final int POOL_SIZE = 32;
+        // blocks the reader may be ahead of the inflater
+        private static final int READ_AHEAD = 4;
+        // magic, deflate, no flags, no time, no extra flags, unknown OS
+        private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private static final BlockingQueue<ByteBuffer> POOL = new ArrayBlockingQueue<>(POOL_SIZE);
+        private static final ExecutorService READERS = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "gzip-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        private static ByteBuffer acquire() {
+            ByteBuffer buffer = POOL.poll();
+            return buffer != null ? buffer.clear() : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        private static void release(ByteBuffer buffer) {
+            // once the pool is full the buffer is left to the garbage collector
+            POOL.offer(buffer);
+        }
+
+        static boolean isCompressed(Path file) throws IOException {
+            try (InputStream in = Files.newInputStream(file)) {
+                byte[] magic = in.readNBytes(2);
+                return magic.length == 2 && magic[0] == HEADER[0] && magic[1] == HEADER[1];
+            }
+        }
+
+        // The content of the file, decompressed when it is gzip
+        static InputStream openDecoded(Path file) throws IOException {
+            if (!isCompressed(file)) {
+                return Files.newInputStream(file);
+            }
+            // GZIPInputStream also reads files made of several gzip members, like cat a.gz b.gz > c.gz
+            return new GZIPInputStream(new PipelinedInputStream(FileChannel.open(file, StandardOpenOption.READ)), BUFFER_SIZE);
+        }
+
+        // Returns the number of bytes read from source
+        static long compress(Path source, Path target, Job job) throws IOException {
+            ByteBuffer input = acquire();
+            ByteBuffer output = acquire();
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            CRC32 crc = new CRC32();
+            long total = 0;
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFully(out, ByteBuffer.wrap(HEADER));
+                while (true) {
+                    Job.checkCancelled(job);
+                    input.clear();
+                    int read = in.read(input);
+                    input.flip();
+                    if (read == -1) {
+                        // the deflater still holds the buffer, it must look empty for finish
+                        break;
+                    }
+                    crc.update(input.duplicate());
+                    total += read;
+                    deflater.setInput(input);
+                    while (!deflater.needsInput()) {
+                        deflate(deflater, output, out);
+                    }
+                }
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate(deflater, output, out);
+                }
+                ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                trailer.putInt((int) crc.getValue()).putInt((int) total).flip();
+                writeFully(out, trailer);
+            } finally {
+                deflater.end();
+                release(input);
+                release(output);
+            }
+            return total;
+        }
+
+        private static void deflate(Deflater deflater, ByteBuffer output, FileChannel out) throws IOException {
+            output.clear();
+            deflater.deflate(output);
+            output.flip();
+            writeFully(out, output);
+        }
+
+        private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+
+        // The reading half of the pipeline: blocks of the file arrive in pooled
+        // direct buffers from a reader thread and are copied out by read
+        private static class PipelinedInputStream extends InputStream {
+
+            private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+            private final FileChannel channel;
+            private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(READ_AHEAD + 1);
+            private final Future<?> reader;
+            private volatile IOException error;
+            private ByteBuffer current;
+            private boolean ended = false;
+
+            PipelinedInputStream(FileChannel channel) {
+                this.channel = channel;
+                this.reader = READERS.submit(() -> {
+                    try {
+                        while (true) {
+                            ByteBuffer buffer = acquire();
+                            if (channel.read(buffer) == -1) {
+                                release(buffer);
+                                break;
+                            }
+                            filled.put(buffer.flip());
+                        }
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                    filled.put(END);
+                    return null;
+                });
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                while (current == null || !current.hasRemaining()) {
+                    if (ended) {
+                        return -1;
+                    }
+                    if (current != null) {
+                        release(current);
+                        current = null;
+                    }
+                    ByteBuffer next;
+                    try {
+                        next = filled.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while reading");
+                    }
+                    if (next == END) {
+                        ended = true;
+                        if (error != null) {
+                            throw error;
+                        }
+                        return -1;
+                    }
+                    current = next;
+                }
+                int chunk = Math.min(length, current.remaining());
+                current.get(bytes, offset, chunk);
+                return chunk;
+            }
+
+            @Override
+            public void close() throws IOException {
+                reader.cancel(true);
+                if (current != null) {
+                    release(current);
+                    current = null;
+                }
+                for (ByteBuffer buffer; (buffer = filled.poll()) != null; ) {
+                    if (buffer != END) {
+                        release(buffer);
+                    }
+                }
+                channel.close();
+            }
+        }
+    }
+
+    // head and tail. On a file they only read what they print: head reads blocks
+    // from the start until it has seen enough line breaks, tail reads blocks
+    // backwards from the end. A pipe can only be read from the front, tail keeps
+    // the last lines of it in memory
+    static class FileLines {
+
+        private static final int BLOCK_SIZE = 64 * 1024;
+        private static final long FOLLOW_POLL_MS = 1000;
+
+        // Prints the first "lines" lines and returns where they end
+        static long head(FileChannel channel, long lines, PrintStream out) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+            long position = 0;
+            long seen = 0;
+            while (seen < lines && !out.checkError()) {
+                Job.checkCancelled();
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read == -1) {
+                    break;
+                }
+                int end = 0;
+                while (end < read && seen < lines) {
+                    if (buffer.get(end++) == '\n') {
+                        seen++;
+                    }
+                }
+                out.write(buffer.array(), 0, end);
+                position += end;
+            }
+            CommandMetrics.addBytesRead(position);
+            return position;
+        }
+
+        // Prints the last "lines" lines and returns the end of the file. A line break
+        // at the very end closes the last line, it does not start an empty one
+        static long tail(FileChannel channel, long lines, PrintStream out) throws IOException {
+            long size = channel.size();
+            long start = size;
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+            long seen = 0;
+            boolean skipLast = true;
+            while (start > 0 && lines > 0) {
+                Job.checkCancelled();
+                int length = (int) Math.min(BLOCK_SIZE, start);
+                buffer.clear().limit(length);
+                long blockStart = start - length;
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, blockStart + buffer.position()) == -1) {
+                        throw new IOException("The file got shorter while reading it");
+                    }
+                }
+                int i = length - 1;
+                if (skipLast && start == size && buffer.get(i) == '\n') {
+                    i--;
+                }
+                skipLast = false;
+                for (; i >= 0; i--) {
+                    if (buffer.get(i) == '\n' && ++seen == lines) {
+                        break;
+                    }
+                }
+                if (i >= 0) {
+                    start = blockStart + i + 1;
+                    break;
+                }
+                start = blockStart;
+            }
+            if (lines == 0) {
+                start = size;
+            }
+            copy(channel, start, size, out);
+            return size;
+        }
+
+        // Prints the new end of the file whenever it grows. The directory is watched
+        // for changes; the size is also checked every FOLLOW_POLL_MS in case the
+        // file system does not report them. A file that got shorter was truncated
+        // or rotated and is printed again from the start
+        static void follow(Path file, FileChannel channel, long position, PrintStream out) throws IOException {
+            out.flush();
+            WatchService watcher = null;
+            try {
+                try {
+                    watcher = file.getFileSystem().newWatchService();
+                    file.toAbsolutePath().getParent().register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+                } catch (IOException | UnsupportedOperationException e) {
+                    // polling alone still works
+                    watcher = null;
+                }
+                while (!out.checkError()) {
+                    Job.checkCancelled();
+                    long size = channel.size();
+                    if (size < position) {
+                        out.println("tail: " + file.getFileName() + ": file truncated");
+                        position = 0;
+                    }
+                    if (size > position) {
+                        copy(channel, position, size, out);
+                        position = size;
+                        out.flush();
+                    }
+                    waitForChange(watcher);
+                }
+            } finally {
+                if (watcher != null) {
+                    watcher.close();
+                }
+            }
+        }
+
+        private static void waitForChange(WatchService watcher) throws InterruptedIOException {
+            try {
+                if (watcher == null) {
+                    Thread.sleep(FOLLOW_POLL_MS);
+                    return;
+                }
+                WatchKey key = watcher.poll(FOLLOW_POLL_MS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Killed");
+            }
+        }
+
+        private static void copy(FileChannel channel, long from, long to, PrintStream out) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+            long position = from;
+            while (position < to && !out.checkError()) {
+                Job.checkCancelled();
+                buffer.clear().limit((int) Math.min(BLOCK_SIZE, to - position));
+                int read = channel.read(buffer, position);
+                if (read == -1) {
+                    break;
+                }
+                out.write(buffer.array(), 0, read);
+                position += read;
+            }
+            CommandMetrics.addBytesRead(position - from);
+        }
+
+        // Stops reading once the lines are printed, the stage in front then sees a
+        // closed pipe and stops too
+        static void head(InputStream in, long lines, PrintStream out) throws IOException {
+            byte[] buffer = new byte[BLOCK_SIZE];
+            long seen = 0;
+            int read;
+            while (seen < lines && (read = in.read(buffer)) != -1) {
+                Job.checkCancelled();
+                int end = 0;
+                while (end < read && seen < lines) {
+                    if (buffer[end++] == '\n') {
+                        seen++;
+                    }
+                }
+                out.write(buffer, 0, end);
+            }
+        }
+
+        static void tail(InputStream in, long lines, PrintStream out) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            ArrayDeque<String> last = new ArrayDeque<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Job.checkCancelled();
+                last.addLast(line);
+                if (last.size() > lines) {
+                    last.removeFirst();
+                }
+            }
+            for (String kept : last) {
+                out.println(kept);
+            }
+        }
+    }
+
+    // Sizes directory trees for du. Every directory is listed on a worker of a
+    // ForkJoin pool, reading the attributes of its entries as it goes, and its
+    // subdirectories are sized in parallel. What a listing found (the bytes of its
+    // files and its subdirectories) is cached by directory. A cached listing is
+    // used while the directory's modification time is unchanged, which holds as
+    // long as no entry was added, removed or renamed in it. Files growing in place
+    // do not change that time, so a listing is also reloaded after TTL_NANOS and
+    // when the shell writes below it. Repeated du on a mostly static tree then
+    // costs one stat per directory instead of one per file
+    static class DiskUsage {
+
+        private static final int MAX_DIRECTORIES = 100_000;
+        private static final long TTL_NANOS = 60_000_000_000L;
+
+        private static class Listing {
+            final long modified;
+            final long fileBytes;
+            final List<Path> directories;
+            final long loadedAt = System.nanoTime();
+
+            Listing(long modified, long fileBytes, List<Path> directories) {
+                this.modified = modified;
+                this.fileBytes = fileBytes;
+                this.directories = directories;
+            }
+        }
+
+        // A measured directory and those of its subdirectories that are printed
+        static class Node {
+            final String name;
+            final long size;
+            final List<Node> children;
+
+            Node(String name, long size, List<Node> children) {
+                this.name = name;
+                this.size = size;
+                this.children = children;
+            }
+        }
+
+        private final LinkedHashMap<Path, Listing> listings = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Listing> eldest) {
+                return size() > MAX_DIRECTORIES;
+            }
+        };
+
+        // Subdirectories deeper than maxDepth are counted but not kept as nodes.
+        // Returns null when path can not be read, the reason is added to errors
+        public Node measure(String name, Path path, int maxDepth, List<String> errors) {
+            ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+            ForkJoinPool pool = new ForkJoinPool(FileBatch.WORKERS);
+            try {
+                return pool.invoke(new SizeTask(name, path.toAbsolutePath().normalize(), 0, maxDepth, failures, Job.current()));
+            } finally {
+                pool.shutdown();
+                errors.addAll(failures);
+            }
+        }
+
+        // The parent holds the bytes of a changed file, everything below a changed
+        // directory may be different as well
+        public synchronized void invalidate(Path changed) {
+            Path normalized = changed.toAbsolutePath().normalize();
+            Path parent = normalized.getParent();
+            listings.keySet().removeIf(directory -> directory.equals(parent) || directory.startsWith(normalized));
+        }
+
+        private synchronized Listing cached(Path directory, long modified) {
+            Listing listing = listings.get(directory);
+            if (listing == null || listing.modified != modified || System.nanoTime() - listing.loadedAt > TTL_NANOS) {
+                return null;
+            }
+            return listing;
+        }
+
+        private synchronized void store(Path directory, Listing listing) {
+            listings.put(directory, listing);
+        }
+
+        private Listing load(Path directory, long modified) throws IOException {
+            long fileBytes = 0;
+            List<Path> directories = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path entry : stream) {
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        directories.add(entry);
+                    } else {
+                        fileBytes += attributes.size();
+                    }
+                }
+            }
+            return new Listing(modified, fileBytes, directories);
+        }
+
+        class SizeTask extends RecursiveTask<Node> {
+
+            private static final long serialVersionUID = 1L;
+
+            private final String name;
+            private final Path path;
+            private final int depth;
+            private final int maxDepth;
+            private final ConcurrentLinkedQueue<String> failures;
+            private final Job job;
+
+            SizeTask(String name, Path path, int depth, int maxDepth, ConcurrentLinkedQueue<String> failures, Job job) {
+                this.name = name;
+                this.path = path;
+                this.depth = depth;
+                this.maxDepth = maxDepth;
+                this.failures = failures;
+                this.job = job;
+            }
+
+            @Override
+            protected Node compute() {
+                try {
+                    Job.checkCancelled(job);
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (!attributes.isDirectory()) {
+                        return new Node(name, attributes.size(), List.of());
+                    }
+                    long modified = attributes.lastModifiedTime().toMillis();
+                    Listing listing = cached(path, modified);
+                    if (listing == null) {
+                        listing = load(path, modified);
+                        store(path, listing);
+                    }
+
+                    List<SizeTask> subdirectories = new ArrayList<>();
+                    for (Path directory : listing.directories) {
+                        String childName = name.endsWith("/") ? name + directory.getFileName() : name + "/" + directory.getFileName();
+                        subdirectories.add(new SizeTask(childName, directory, depth + 1, maxDepth, failures, job));
+                    }
+                    invokeAll(subdirectories);
+
+                    long size = listing.fileBytes;
+                    List<Node> children = new ArrayList<>();
+                    for (SizeTask subdirectory : subdirectories) {
+                        Node child = subdirectory.join();
+                        if (child == null) {
+                            continue;
+                        }
+                        size += child.size;
+                        if (depth < maxDepth) {
+                            children.add(child);
+                        }
+                    }
+                    children.sort(Comparator.comparing(child -> child.name));
+                    return new Node(name, size, children);
+                } catch (IOException e) {
+                    if (e instanceof NoSuchFileException) {
+                        failures.add("du faild: (" + name + ") no such file or directory");
+                    } else if (e instanceof AccessDeniedException) {
+                        failures.add("du faild: (" + name + ") permission denied");
+                    } else {
+                        failures.add("du faild: (" + name + ") " + e.getMessage());
+                    }
+                    return null;
+                }
+            }
+        }
+    }
+
+    // Walks directory trees on a worker pool and hands every entry to a visitor, as
+    // soon as it is found. Each directory is read by one worker and its
+    // subdirectories are walked in parallel; links are reported but not followed.
+    // Entries that can not be read are collected as errors and the walk goes on
+    static class TreeWalker {
+
+        interface Visitor {
+            void visit(String name, Path path, BasicFileAttributes attributes) throws IOException;
+        }
+
+        // the command shown in front of the errors
+        private final String command;
+        private final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+        private final Job job = Job.current();
+        private volatile boolean stopped = false;
+        // what the visitors read, added up here because they run on the pool's threads
+        // where CommandMetrics does not count
+        private final AtomicLong bytesRead = new AtomicLong();
+
+        TreeWalker(String command) {
+            this.command = command;
+        }
+
+        // The roots are walked together; name is how an entry is shown, its root's
+        // name followed by the path below the root
+        public void walk(List<FileBatch.Target> roots, Visitor visitor) {
+            List<WalkTask> tasks = new ArrayList<>();
+            for (FileBatch.Target root : roots) {
+                try {
+                    tasks.add(new WalkTask(root.name, root.path,
+                        Files.readAttributes(root.path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS), visitor));
+                } catch (IOException e) {
+                    errors.add(describe(root.name, e));
+                }
+            }
+            if (tasks.isEmpty()) {
+                return;
+            }
+            ForkJoinPool pool = new ForkJoinPool(FileBatch.WORKERS);
+            try {
+                pool.invoke(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        invokeAll(tasks);
+                    }
+                });
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        // Ends the walk early, e.g. when nobody reads the output anymore
+        public void stop() {
+            stopped = true;
+        }
+
+        public List<String> getErrors() {
+            return new ArrayList<>(errors);
+        }
+
+        public void addBytesRead(long bytes) {
+            bytesRead.addAndGet(bytes);
+        }
+
+        public long getBytesRead() {
+            return bytesRead.get();
+        }
+
+        private String describe(String name, IOException e) {
+            if (e instanceof NoSuchFileException) {
+                return command + " faild: (" + name + ") no such file or directory";
+            }
+            if (e instanceof AccessDeniedException) {
+                return command + " faild: (" + name + ") permission denied";
+            }
+            return command + " faild: (" + name + ") " + e.getMessage();
+        }
+
+        class WalkTask extends RecursiveAction {
+
+            private static final long serialVersionUID = 1L;
+
+            private final String name;
+            private final Path path;
+            private final BasicFileAttributes attributes;
+            private final Visitor visitor;
+
+            WalkTask(String name, Path path, BasicFileAttributes attributes, Visitor visitor) {
+                this.name = name;
+                this.path = path;
+                this.attributes = attributes;
+                this.visitor = visitor;
+            }
+
+            @Override
+            protected void compute() {
+                if (stopped || (job != null && job.cancelled)) {
+                    return;
+                }
+                try {
+                    visitor.visit(name, path, attributes);
+                } catch (IOException e) {
+                    errors.add(describe(name, e));
+                }
+                if (!attributes.isDirectory()) {
+                    return;
+                }
+
+                List<WalkTask> children = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                    for (Path entry : stream) {
+                        String entryName = name.endsWith("/") ? name + entry.getFileName() : name + "/" + entry.getFileName();
+                        try {
+                            children.add(new WalkTask(entryName, entry,
+                                Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS), visitor));
+                        } catch (IOException e) {
+                            errors.add(describe(entryName, e));
+                        }
+                    }
+                } catch (IOException e) {
+                    errors.add(describe(name, e));
+                }
+                invokeAll(children);
+            }
+        }
+    }
+
+    // The search of one grep command. A literal pattern is found with
+    // Boyer-Moore-Horspool straight in the memory mapped file, skipping ahead up to
+    // the pattern length per comparison; only the matching lines are ever copied.
+    // Regex patterns are matched line by line. Files are read in chunks that end
+    // at a line break, so a line is never cut in two
+    static class Grep {
+
+        private static final long CHUNK_SIZE = 64L * 1024 * 1024;
+        // the lines found in one file are written out in pieces of about this size,
+        // so they stay together without holding all of them in memory
+        private static final int FLUSH_SIZE = 64 * 1024;
+
+        private final String pattern;
+        private final byte[] literal;
+        private final int[] skip;
+        private final Pattern regex;
+        private final boolean lineNumbers;
+        private final boolean filesOnly;
+
+        Grep(String pattern, boolean fixed, boolean ignoreCase, boolean lineNumbers, boolean filesOnly) {
+            this.pattern = pattern;
+            this.lineNumbers = lineNumbers;
+            this.filesOnly = filesOnly;
+            boolean isLiteral = !pattern.isEmpty() && !ignoreCase && (fixed || isPlain(pattern));
+            if (isLiteral) {
+                this.literal = pattern.getBytes(StandardCharsets.UTF_8);
+                this.skip = new int[256];
+                Arrays.fill(skip, literal.length);
+                for (int i = 0; i < literal.length - 1; i++) {
+                    skip[literal[i] & 0xff] = literal.length - 1 - i;
+                }
+                this.regex = null;
+            } else {
+                this.literal = null;
+                this.skip = null;
+                int flags = ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0;
+                this.regex = Pattern.compile(fixed ? Pattern.quote(pattern) : pattern, flags);
+            }
+        }
+
+        private static boolean isPlain(String pattern) {
+            for (int i = 0; i < pattern.length(); i++) {
+                if (".[]{}()\\*+?^$|".indexOf(pattern.charAt(i)) >= 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Searches a pipe, name is not shown
+        void search(InputStream in, PrintStream out) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            long lineNumber = 0;
+            while ((line = reader.readLine()) != null && !out.checkError()) {
+                Job.checkCancelled();
+                lineNumber++;
+                if (literal != null ? line.contains(pattern) : regex.matcher(line).find()) {
+                    if (filesOnly) {
+                        out.println("(standard input)");
+                        return;
+                    }
+                    out.println(lineNumbers ? lineNumber + ":" + line : line);
+                }
+            }
+        }
+
+        // Searches one file, each matching line is printed after "name:" unless name is
+        // null. With filesOnly name is printed instead, so it must be given
+        void search(Path file, String name, PrintStream out) throws IOException {
+            Output lines = new Output(name, out);
+            if (literal != null) {
+                searchLiteral(file, lines);
+            } else {
+                searchRegex(file, lines);
+            }
+            lines.flush();
+        }
+
+        private void searchLiteral(Path file, Output lines) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                long start = 0;
+                long lineNumber = 1;
+                while (start < size) {
+                    Job.checkCancelled();
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, size - start));
+                    int length = buffer.limit();
+                    if (start + length < size) {
+                        // end the chunk after its last line break, the rest is read with the next one
+                        int end = length - 1;
+                        while (end > 0 && buffer.get(end) != '\n') {
+                            end--;
+                        }
+                        if (end > 0) {
+                            length = end + 1;
+                        }
+                    }
+
+                    int counted = 0;
+                    int from = 0;
+                    int match;
+                    while ((match = indexOf(buffer, from, length)) >= 0) {
+                        int lineStart = match;
+                        while (lineStart > 0 && buffer.get(lineStart - 1) != '\n') {
+                            lineStart--;
+                        }
+                        int lineEnd = match + literal.length;
+                        while (lineEnd < length && buffer.get(lineEnd) != '\n') {
+                            lineEnd++;
+                        }
+                        if (lineNumbers) {
+                            lineNumber += countLineBreaks(buffer, counted, lineStart);
+                            counted = lineStart;
+                        }
+                        if (lines.add(buffer, lineStart, lineEnd, lineNumber)) {
+                            return;
+                        }
+                        from = lineEnd + 1;
+                    }
+                    if (lineNumbers) {
+                        lineNumber += countLineBreaks(buffer, counted, length);
+                    }
+                    start += length;
+                }
+            }
+        }
+
+        // Boyer-Moore-Horspool: compares from the end of the pattern and on a mismatch
+        // moves by how far the byte under the pattern's last position is from its end
+        private int indexOf(ByteBuffer buffer, int from, int to) {
+            int last = literal.length - 1;
+            int i = from;
+            while (i + last < to) {
+                int j = last;
+                while (buffer.get(i + j) == literal[j]) {
+                    if (j == 0) {
+                        return i;
+                    }
+                    j--;
+                }
+                i += skip[buffer.get(i + last) & 0xff];
+            }
+            return -1;
+        }
+
+        private static int countLineBreaks(ByteBuffer buffer, int from, int to) {
+            int count = 0;
+            for (int i = from; i < to; i++) {
+                if (buffer.get(i) == '\n') {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private void searchRegex(Path file, Output lines) throws IOException {
+            // bytes that are not UTF-8 are read as replacement characters instead of failing
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                long lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if ((lineNumber & 0xfff) == 0) {
+                        Job.checkCancelled();
+                    }
+                    if (regex.matcher(line).find() && lines.add(line, lineNumber)) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        // Collects the matching lines of one file and writes them out in pieces
+        private class Output {
+
+            private final String name;
+            private final PrintStream out;
+            private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+            Output(String name, PrintStream out) {
+                this.name = name;
+                this.out = out;
+            }
+
+            // Returns true when the rest of the file need not be searched
+            boolean add(ByteBuffer buffer, int start, int end, long lineNumber) {
+                if (filesOnly) {
+                    return addName();
+                }
+                prefix(lineNumber);
+                byte[] line = new byte[end - start];
+                buffer.get(start, line);
+                pending.writeBytes(line);
+                return endLine();
+            }
+
+            boolean add(String line, long lineNumber) {
+                if (filesOnly) {
+                    return addName();
+                }
+                prefix(lineNumber);
+                pending.writeBytes(line.getBytes(StandardCharsets.UTF_8));
+                return endLine();
+            }
+
+            private boolean addName() {
+                pending.writeBytes(name.getBytes(StandardCharsets.UTF_8));
+                pending.write('\n');
+                return true;
+            }
+
+            private void prefix(long lineNumber) {
+                if (name != null) {
+                    pending.writeBytes((name + ":").getBytes(StandardCharsets.UTF_8));
+                }
+                if (lineNumbers) {
+                    pending.writeBytes((lineNumber + ":").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+
+            private boolean endLine() {
+                pending.write('\n');
+                if (pending.size() >= FLUSH_SIZE) {
+                    flush();
+                }
+                return out.checkError();
+            }
+
+            void flush() {
+                if (pending.size() == 0) {
+                    return;
+                }
+                synchronized (out) {
+                    out.write(pending.toByteArray(), 0, pending.size());
+                }
+                pending.reset();
+            }
+        }
+    }
+
+    // Reads the files of a multi-file cat ahead of the one being printed. Up to
+    // FILES_AHEAD files are read at the same time, each into its own queue of at most
+    // CHUNKS_PER_FILE chunks, so slow disks or network mounts are waited on in
+    // parallel while the output still comes out strictly in argument order and no
+    // more than a few MiB sit in memory
+    static class ReadAhead implements Closeable {
+
+        private static final int CHUNK_SIZE = 256 * 1024;
+        private static final int CHUNKS_PER_FILE = 8;
+        private static final int FILES_AHEAD = 4;
+
+        // a piece of a file, the end of it, or the reason reading it failed
+        private static class Chunk {
+            final byte[] data;
+            final int length;
+            final IOException error;
+
+            Chunk(byte[] data, int length, IOException error) {
+                this.data = data;
+                this.length = length;
+                this.error = error;
+            }
+        }
+
+        private static final Chunk END = new Chunk(null, -1, null);
+
+        private final List<Path> files;
+        private final ExecutorService executor;
+        private final List<BlockingQueue<Chunk>> queues = new ArrayList<>();
+        private final List<Future<?>> readers = new ArrayList<>();
+
+        public ReadAhead(List<Path> files, ExecutorService executor) {
+            this.files = files;
+            this.executor = executor;
+            for (int i = 0; i < files.size(); i++) {
+                queues.add(new ArrayBlockingQueue<>(CHUNKS_PER_FILE));
+                readers.add(null);
+            }
+            for (int i = 0; i < FILES_AHEAD && i < files.size(); i++) {
+                start(i);
+            }
+        }
+
+        private void start(int index) {
+            BlockingQueue<Chunk> queue = queues.get(index);
+            Path file = files.get(index);
+            readers.set(index, executor.submit(() -> {
+                // a .gz file is decompressed here, so that also overlaps with the printing
+                try (InputStream in = Gzip.openDecoded(file)) {
+                    while (true) {
+                        byte[] data = new byte[CHUNK_SIZE];
+                        int length = in.readNBytes(data, 0, CHUNK_SIZE);
+                        if (length > 0) {
+                            queue.put(new Chunk(data, length, null));
+                        }
+                        if (length < CHUNK_SIZE) {
+                            queue.put(END);
+                            return null;
+                        }
+                    }
+                } catch (IOException e) {
+                    queue.put(new Chunk(null, -1, e));
+                }
+                return null;
+            }));
+        }
+
+        // Writes file "index" to out and starts reading the file FILES_AHEAD further
+        // on. Files have to be asked for in order. Stops early once out reports an error
+        public long copyTo(int index, PrintStream out) throws IOException {
+            if (index + FILES_AHEAD < files.size()) {
+                start(index + FILES_AHEAD);
+            }
+            BlockingQueue<Chunk> queue = queues.get(index);
+            long copied = 0;
+            boolean finished = false;
+            try {
+                while (true) {
+                    Job.checkCancelled();
+                    Chunk chunk = queue.take();
+                    if (chunk.error != null) {
+                        finished = true;
+                        throw chunk.error;
+                    }
+                    if (chunk == END) {
+                        finished = true;
+                        return copied;
+                    }
+                    out.write(chunk.data, 0, chunk.length);
+                    copied += chunk.length;
+                    if (out.checkError()) {
+                        return copied;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading " + files.get(index));
+            } finally {
+                // A reader that has not reached the end may be blocked on the full queue
+                Future<?> reader = readers.set(index, null);
+                if (!finished && reader != null) {
+                    reader.cancel(true);
+                }
+                queue.clear();
+            }
+        }
+
+        // Stops the readers that are still running, e.g. when the output was closed
+        @Override
+        public void close() {
+            for (Future<?> reader : readers) {
+                if (reader != null) {
+                    reader.cancel(true);
+                }
+            }
+        }
+    }
+
+    // Keeps the targets of > and >> open between commands, so a script appending
+    // thousands of lines to the same log does not open and close it every time.
+    // Output is collected in a direct buffer per file and written when the buffer
+    // fills up, every FLUSH_INTERVAL_MS, before a command names the file (or a
+    // directory above it), and when the shell exits. Only the MAX_OPEN_FILES most
+    // recently used files stay open. Files are opened in append mode: ">>" just
+    // writes at the end, ">" first drops what is buffered and truncates the file.
+    // A file named by a command is handed back first, see releaseUnder
+    static class RedirectPool implements Closeable {
+
+        private static final int MAX_OPEN_FILES = 16;
+        private static final int BUFFER_SIZE = 64 * 1024;
+        private static final long FLUSH_INTERVAL_MS = 500;
+
+        private final LinkedHashMap<Path, PooledWriter> writers = new LinkedHashMap<>(16, 0.75f, true);
+        private ScheduledExecutorService flusher;
+        private boolean closed = false;
+
+        private static class PooledWriter {
+            final Path path;
+            final FileChannel channel;
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            // commands currently writing, a writer in use is never evicted
+            int users = 0;
+
+            PooledWriter(Path path) throws IOException {
+                this.path = path;
+                this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+
+            synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+                while (length > 0) {
+                    if (!buffer.hasRemaining()) {
+                        flush();
+                    }
+                    int chunk = Math.min(length, buffer.remaining());
+                    buffer.put(bytes, offset, chunk);
+                    offset += chunk;
+                    length -= chunk;
+                }
+            }
+
+            synchronized void flush() throws IOException {
+                buffer.flip();
+                try {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                } finally {
+                    buffer.clear();
+                }
+            }
+
+            synchronized void truncate() throws IOException {
+                buffer.clear();
+                channel.truncate(0);
+            }
+
+            synchronized void close() throws IOException {
+                try {
+                    flush();
+                } finally {
+                    channel.close();
+                }
+            }
+        }
+
+        // The stream a command writes its redirected output into. Closing it only
+        // hands the file back to the pool
+        public synchronized OutputStream open(Path path, boolean append) throws IOException {
+            if (closed) {
+                throw new IOException("The shell is closing");
+            }
+            Path key = path.toAbsolutePath().normalize();
+            PooledWriter writer = writers.get(key);
+            if (writer != null && writer.users == 0 && (!writer.channel.isOpen() || !Files.exists(key))) {
+                // removed behind our back, writing on would go to the deleted file. A
+                // killed job interrupted while writing leaves the channel closed
+                writers.remove(key);
+                closeWriter(writer);
+                writer = null;
+            }
+            if (writer == null) {
+                writer = new PooledWriter(key);
+                writers.put(key, writer);
+                evict();
+                startFlusher();
+            }
+            if (!append) {
+                writer.truncate();
+            }
+            writer.users++;
+
+            PooledWriter target = writer;
+            return new OutputStream() {
+                private boolean released = false;
+
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    target.write(bytes, offset, length);
+                }
+
+                @Override
+                public void close() {
+                    if (!released) {
+                        released = true;
+                        release(target);
+                    }
+                }
+            };
+        }
+
+        private synchronized void release(PooledWriter writer) {
+            writer.users--;
+            evict();
+        }
+
+        // Closes the least recently used files that nobody is writing to
+        private void evict() {
+            Iterator<PooledWriter> eldest = writers.values().iterator();
+            while (writers.size() > MAX_OPEN_FILES && eldest.hasNext()) {
+                PooledWriter writer = eldest.next();
+                if (writer.users == 0) {
+                    eldest.remove();
+                    closeWriter(writer);
+                }
+            }
+        }
+
+        private void startFlusher() {
+            if (flusher != null) {
+                return;
+            }
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "redirect-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flushAll, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+
+        public synchronized void flushAll() {
+            for (PooledWriter writer : writers.values()) {
+                flushWriter(writer);
+            }
+        }
+
+        // Hands back every file at or below one of the paths, so the command sees
+        // all output written so far and may read, replace or delete the file.
+        // Files still being written by another command are only flushed
+        public synchronized void releaseUnder(List<Path> paths) {
+            Iterator<PooledWriter> iterator = writers.values().iterator();
+            while (iterator.hasNext()) {
+                PooledWriter writer = iterator.next();
+                for (Path path : paths) {
+                    if (writer.path.startsWith(path.toAbsolutePath().normalize())) {
+                        if (writer.users == 0) {
+                            iterator.remove();
+                            closeWriter(writer);
+                        } else {
+                            flushWriter(writer);
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+
+        private static void flushWriter(PooledWriter writer) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                System.err.println("Could not write / append the output to " + writer.path + ": " + e.getMessage());
+            }
+        }
+
+        private static void closeWriter(PooledWriter writer) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                System.err.println("Could not write / append the output to " + writer.path + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (flusher != null) {
+                flusher.shutdownNow();
+            }
+            for (PooledWriter writer : writers.values()) {
+                closeWriter(writer);
+            }
+            writers.clear();
+        }
+    }
+
+    // The command history. Every line is appended to a log of [int length][UTF-8
+    // bytes] records, which is a memory mapped file for the interactive shell (so it
+    // survives restarts) or a heap buffer otherwise. Appending copies the line into
+    // the log and its offset into an int array, both grow by doubling, so adding is
+    // O(1) however long the history gets. A zero length marks the end of the log.
+    // Once the log would pass MAX_LOG_BYTES only its newest half is kept
+    static class CommandHistory {
+
+        static final int MAX_LOG_BYTES = 16 * 1024 * 1024;
+        private static final int INITIAL_CAPACITY = 64 * 1024;
+
+        // null when the history only lives in memory
+        private final Path file;
+        private FileChannel channel;
+        private ByteBuffer log;
+        private int[] offsets = new int[1024];
+        private int count = 0;
+        private int end = 0;
+
+        private CommandHistory(Path file) {
+            this.file = file;
+        }
+
+        static CommandHistory inMemory() {
+            CommandHistory history = new CommandHistory(null);
+            history.log = ByteBuffer.allocate(INITIAL_CAPACITY);
+            return history;
+        }
+
+        // The file from the cli.history system property, or ~/.cli_history.
+        // An empty cli.history keeps the history in memory
+        static Path defaultFile() {
+            String file = System.getProperty("cli.history");
+            if (file == null) {
+                return Path.of(System.getProperty("user.home"), ".cli_history");
+            }
+            return file.isEmpty() ? null : Path.of(file);
+        }
+
+        // Falls back to a history in memory if the file cannot be used, e.g.
+        // because another shell has it open
+        static CommandHistory openDefault() {
+            Path file = defaultFile();
+            if (file == null) {
+                return inMemory();
+            }
+            try {
+                return open(file);
+            } catch (IOException e) {
+                System.err.println("History will not be saved: " + e.getMessage());
+                return inMemory();
+            }
+        }
+
+        static CommandHistory open(Path file) throws IOException {
+            CommandHistory history = new CommandHistory(file);
+            history.openLog();
+            history.readIndex();
+            return history;
+        }
+
+        private void openLog() throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                if (channel.tryLock() == null) {
+                    throw new IOException(file + " is used by another shell");
+                }
+            } catch (OverlappingFileLockException e) {
+                channel.close();
+                throw new IOException(file + " is used by another shell");
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            long capacity = INITIAL_CAPACITY;
+            while (capacity < channel.size()) {
+                capacity *= 2;
+            }
+            log = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(capacity, Integer.MAX_VALUE));
+        }
+
+        // Rebuilds the offsets from the records already in the log
+        private void readIndex() {
+            int position = 0;
+            while (position + 4 <= log.capacity()) {
+                int length = log.getInt(position);
+                if (length <= 0 || position + 4 + length > log.capacity()) {
+                    break;
+                }
+                addOffset(position);
+                position += 4 + length;
+            }
+            end = position;
+        }
+
+        private void addOffset(int offset) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = offset;
+        }
+
+        public synchronized void add(String line) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            int recordSize = 4 + bytes.length;
+            if (bytes.length == 0 || recordSize > MAX_LOG_BYTES / 4) {
+                return;
+            }
+            try {
+                if (end + recordSize + 4 > MAX_LOG_BYTES) {
+                    keepNewestHalf();
+                }
+                if (end + recordSize + 4 > log.capacity()) {
+                    grow(end + recordSize + 4);
+                }
+            } catch (IOException e) {
+                System.err.println("Could not save the history: " + e.getMessage());
+                return;
+            }
+            // the bytes go in before the length, so a record is never seen half written
+            log.put(end + 4, bytes);
+            log.putInt(end, bytes.length);
+            addOffset(end);
+            end += recordSize;
+        }
+
+        private void grow(int needed) throws IOException {
+            int capacity = log.capacity();
+            while (capacity < needed) {
+                capacity *= 2;
+            }
+            if (file != null) {
+                log = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } else {
+                ByteBuffer larger = ByteBuffer.allocate(capacity);
+                larger.put(0, log, 0, end);
+                log = larger;
+            }
+        }
+
+        // Drops the oldest entries until the log is at most half of MAX_LOG_BYTES.
+        // The file is rewritten next to the old one and then moved over it
+        private void keepNewestHalf() throws IOException {
+            int first = 0;
+            while (first < count && end - offsets[first] > MAX_LOG_BYTES / 2) {
+                first++;
+            }
+            int start = (first < count) ? offsets[first] : end;
+            ByteBuffer kept = log.duplicate().position(start).limit(end);
+
+            if (file != null) {
+                Path rotated = file.resolveSibling(file.getFileName() + ".tmp");
+                try (FileChannel out = FileChannel.open(rotated, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    while (kept.hasRemaining()) {
+                        out.write(kept);
+                    }
+                }
+                Files.move(rotated, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                channel.close();
+                openLog();
+            } else {
+                ByteBuffer fresh = ByteBuffer.allocate(log.capacity());
+                fresh.put(kept);
+                log = fresh;
+            }
+
+            int[] shifted = new int[Math.max(1024, offsets.length)];
+            for (int i = first; i < count; i++) {
+                shifted[i - first] = offsets[i] - start;
+            }
+            offsets = shifted;
+            count -= first;
+            end -= start;
+        }
+
+        public synchronized Snapshot snapshot() {
+            return new Snapshot(log, offsets, count);
+        }
+
+        // !! is the last command line, !n the n-th and !prefix the last one
+        // starting with prefix. Returns null if there is no such line
+        public String expand(String reference) {
+            Snapshot entries = snapshot();
+            String target = reference.substring(1);
+            if (entries.size() == 0 || target.isEmpty()) {
+                return null;
+            }
+            if (target.equals("!")) {
+                return entries.get(entries.size() - 1);
+            }
+            if (target.chars().allMatch(Character::isDigit)) {
+                try {
+                    int index = Integer.parseInt(target) - 1;
+                    return (index >= 0 && index < entries.size()) ? entries.get(index) : null;
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            byte[] prefix = target.getBytes(StandardCharsets.UTF_8);
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                if (entries.matches(i, prefix, true)) {
+                    return entries.get(i);
+                }
+            }
+            return null;
+        }
+
+        // The entries at the time it was taken. Records are never changed once
+        // written and a grown or rotated log is a new buffer, so reading it needs no
+        // lock and never blocks add
+        static final class Snapshot {
+            private final ByteBuffer log;
+            private final int[] offsets;
+            private final int count;
+
+            private Snapshot(ByteBuffer log, int[] offsets, int count) {
+                this.log = log;
+                this.offsets = offsets;
+                this.count = count;
+            }
+
+            public int size() {
+                return count;
+            }
+
+            public String get(int index) {
+                int offset = offsets[index];
+                byte[] bytes = new byte[log.getInt(offset)];
+                log.get(offset + 4, bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            // Compares the raw UTF-8 bytes, no String is created for entries that do not match
+            public boolean matches(int index, byte[] pattern, boolean prefixOnly) {
+                int offset = offsets[index];
+                int length = log.getInt(offset);
+                if (pattern.length > length) {
+                    return false;
+                }
+                int start = offset + 4;
+                int lastStart = prefixOnly ? start : start + length - pattern.length;
+                for (int i = start; i <= lastStart; i++) {
+                    int j = 0;
+                    while (j < pattern.length && log.get(i + j) == pattern[j]) {
+                        j++;
+                    }
+                    if (j == pattern.length) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+    }
+
+    // Time spent per command name in a batch run
+    static class TimingSummary {
+
+        // count, failures, total nanos, max nanos per command, in the order first seen
+        private final Map<String, long[]> commands = new LinkedHashMap<>();
+        private final long startTime = System.nanoTime();
+
+        void record(String commandName, long nanos, boolean succeeded) {
+            long[] entry = commands.computeIfAbsent(commandName, name -> new long[4]);
+            entry[0]++;
+            if (!succeeded) {
+                entry[1]++;
+            }
+            entry[2] += nanos;
+            entry[3] = Math.max(entry[3], nanos);
+        }
+
+        void print(PrintStream out) {
+            long count = 0, failures = 0;
+            out.printf("%-14s %8s %8s %12s %12s %12s%n", "command", "count", "failed", "total ms", "avg ms", "max ms");
+            for (Map.Entry<String, long[]> command : commands.entrySet()) {
+                long[] entry = command.getValue();
+                out.printf("%-14s %8d %8d %12.3f %12.3f %12.3f%n", command.getKey(), entry[0], entry[1],
+                    entry[2] / 1e6, entry[2] / 1e6 / entry[0], entry[3] / 1e6);
+                count += entry[0];
+                failures += entry[1];
+            }
+            double seconds = Math.max(System.nanoTime() - startTime, 1) / 1e9;
+            out.printf("%d command(s), %d failed, %.3f s, %.1f commands/s%n", count, failures, seconds, count / seconds);
+        }
+    }
+
+    // What every entry of commandMap implements. "in" is the output of the previous
+    // pipeline stage, or null when the command is not reading from a pipe
+    interface Command {
+        void execute(String[] args, InputStream in, PrintStream out);
+    }
+
+    // A bounded in memory pipe between two pipeline stages. The writer blocks while
+    // the buffer is full and the reader while it is empty, so a fast stage can never
+    // get more than the buffer size ahead of a slow one. Once the reader closes its
+    // end, writes fail so the writing stage can stop early
+    static class BytePipe {
+
+        private final byte[] buffer;
+        private int readIndex = 0;
+        private int count = 0;
+        private boolean writerClosed = false;
+        private boolean readerClosed = false;
+
+        BytePipe(int size) {
+            this.buffer = new byte[size];
+        }
+
+        private synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                while (count == buffer.length && !readerClosed) {
+                    waitForOtherSide();
+                }
+                if (readerClosed) {
+                    throw new IOException("Broken pipe");
+                }
+                int writeIndex = (readIndex + count) % buffer.length;
+                int chunk = Math.min(length, Math.min(buffer.length - count, buffer.length - writeIndex));
+                System.arraycopy(bytes, offset, buffer, writeIndex, chunk);
+                count += chunk;
+                offset += chunk;
+                length -= chunk;
+                notifyAll();
             }
+        }
 
-            return null;
-       }
+        private synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (count == 0 && !writerClosed) {
+                waitForOtherSide();
+            }
+            if (count == 0) {
+                return -1;
+            }
+            int chunk = Math.min(length, Math.min(count, buffer.length - readIndex));
+            System.arraycopy(buffer, readIndex, bytes, offset, chunk);
+            readIndex = (readIndex + chunk) % buffer.length;
+            count -= chunk;
+            notifyAll();
+            return chunk;
+        }
+
+        private void waitForOtherSide() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Pipeline interrupted");
+            }
+        }
+
+        private synchronized void closeWriter() {
+            writerClosed = true;
+            notifyAll();
+        }
+
+        private synchronized void closeReader() {
+            readerClosed = true;
+            notifyAll();
+        }
+
+        OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    BytePipe.this.write(bytes, offset, length);
+                }
+
+                @Override
+                public void close() {
+                    closeWriter();
+                }
+            };
+        }
+
+        InputStream getInputStream() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] single = new byte[1];
+                    return (read(single, 0, 1) == -1) ? -1 : (single[0] & 0xFF);
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int length) throws IOException {
+                    return BytePipe.this.read(bytes, offset, length);
+                }
+
+                @Override
+                public void close() {
+                    closeReader();
+                }
+            };
+        }
+    }
+    
+    // Copies files byte for byte with FileChannel.transferTo, so on most platforms the
+    // data moves inside the kernel and never passes through the Java heap.
+    // It also counts what it copied so cp can report the throughput
+    class FileCopier {
+
+        // Each copy holds two open files and each directory listing one, the permits
+        // keep parallel tree copies well under the process file handle limit
+        private static final int MAX_OPEN_FILES = 256;
+        // a kill is noticed between two chunks of one file
+        private static final long TRANSFER_CHUNK = 64L * 1024 * 1024;
 
-        private void writeOutput(String commandOutput, String[] outputInfo) {
-            String outputFilePath = (outputInfo != null) ? outputInfo[0] : null;
-            String outputType = (outputInfo != null) ? outputInfo[1] : null;
+        private final AtomicLong filesCopied = new AtomicLong();
+        private final AtomicLong bytesCopied = new AtomicLong();
+        private final AtomicLong filesSkipped = new AtomicLong();
+        private final AtomicLong bytesHashed = new AtomicLong();
+        private final long startTime = System.nanoTime();
+        private final Semaphore openFiles = new Semaphore(MAX_OPEN_FILES);
+        // the copy may run on a worker pool, so the job is taken from the thread that started it
+        private final Job job = Job.current();
+        // set for cp -r --sync, which skips files that did not change since the last sync
+        final SyncManifest manifest;
+        private final Path targetRoot;
 
-            if (outputFilePath== null) {
-                System.out.println(commandOutput);
+        FileCopier() {
+            this(null, null);
+        }
+
+        FileCopier(SyncManifest manifest, Path targetRoot) {
+            this.manifest = manifest;
+            this.targetRoot = targetRoot;
+        }
+
+        public long copyFile(Path source, Path target) throws IOException {
+            Job.checkCancelled(job);
+            openFiles.acquireUninterruptibly(2);
+            try {
+                return transfer(source, target);
+            } finally {
+                openFiles.release(2);
             }
-            
-            else {
-                Path newPath = this.path.resolve(outputFilePath);
+        }
+
+        private long transfer(Path source, Path target) throws IOException {
+            checkNotSameFile(source, target);
+            long position = 0;
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long size = in.size();
+                // transferTo may move less than asked for, so keep going until the whole file is done
+                while (position < size) {
+                    Job.checkCancelled(job);
+                    long transferred = in.transferTo(position, Math.min(size - position, TRANSFER_CHUNK), out);
+                    if (transferred <= 0) {
+                        // the source was truncated while we were copying it
+                        break;
+                    }
+                    position += transferred;
+                }
+            }
+            filesCopied.incrementAndGet();
+            bytesCopied.addAndGet(position);
+            return position;
+        }
+
+        // Opening the target truncates it, which would empty the source too
+        private void checkNotSameFile(Path source, Path target) throws IOException {
+            if (Files.exists(target) && Files.isSameFile(source, target)) {
+                throw new IOException(source + " and " + target + " are the same file");
+            }
+        }
+
+        // Writes source into target as gzip, the count is of the uncompressed bytes
+        public long compressFile(Path source, Path target) throws IOException {
+            checkNotSameFile(source, target);
+            long read = Gzip.compress(source, target, job);
+            filesCopied.incrementAndGet();
+            bytesCopied.addAndGet(read);
+            return read;
+        }
+
+        // Reads the entries of a directory and closes it before anything is copied, so
+        // no directory handle stays open while its subdirectories are walked
+        public List<Path> listDirectory(Path directory) throws IOException {
+            openFiles.acquireUninterruptibly();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                List<Path> entries = new ArrayList<>();
+                for (Path entry : stream) {
+                    entries.add(entry);
+                }
+                return entries;
+            } finally {
+                openFiles.release();
+            }
+        }
+
+        public void copyTree(Path source, Path target) throws IOException {
+            Files.createDirectories(target);
+            for (Path entry : listDirectory(source)) {
+                Path targetEntry = target.resolve(entry.getFileName());
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    copyTree(entry, targetEntry);
+                } else {
+                    copyEntry(entry, targetEntry);
+                }
+            }
+        }
+
+        // A file met while walking a tree. Without a manifest it is always copied
+        private void copyEntry(Path source, Path target) throws IOException {
+            if (manifest == null) {
+                copyFile(source, target);
+                return;
+            }
+            // the source may itself be a synced tree
+            if (source.getFileName().toString().equals(SyncManifest.MANIFEST_NAME)) {
+                return;
+            }
+            sync(source, target);
+        }
+
+        // Copies source unless target already has the same content. Equal size and
+        // modification time count as unchanged, as does a match with the manifest.
+        // Equal size with different times is suspicious, for example after a touch or
+        // a copy by another tool, and is settled by comparing content hashes
+        private void sync(Path source, Path target) throws IOException {
+            Job.checkCancelled(job);
+            String key = targetRoot.relativize(target).toString();
+            BasicFileAttributes sourceAttributes = Files.readAttributes(source, BasicFileAttributes.class);
+            long sourceSize = sourceAttributes.size();
+            long sourceModified = sourceAttributes.lastModifiedTime().toMillis();
+            SyncManifest.Entry entry = manifest.get(key);
+            boolean sourceAsRecorded = entry != null && entry.sourceSize == sourceSize && entry.sourceModified == sourceModified;
+            String hash = sourceAsRecorded ? entry.hash : "";
 
-                if (newPath == null) {
-                    System.err.println("Could not write / append the output to the file");
+            BasicFileAttributes targetAttributes = null;
+            try {
+                targetAttributes = Files.readAttributes(target, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e) {
+                // not copied yet
+            }
+
+            if (targetAttributes != null && targetAttributes.isRegularFile() && targetAttributes.size() == sourceSize) {
+                long targetModified = targetAttributes.lastModifiedTime().toMillis();
+                boolean unchanged = sourceModified == targetModified
+                    || (sourceAsRecorded && entry.targetSize == sourceSize && entry.targetModified == targetModified);
+                if (!unchanged) {
+                    if (hash.isEmpty()) {
+                        hash = hash(source);
+                    }
+                    unchanged = hash.equals(hash(target));
+                }
+                if (unchanged) {
+                    manifest.put(key, new SyncManifest.Entry(sourceSize, sourceModified, sourceSize, targetModified, hash));
+                    filesSkipped.incrementAndGet();
                     return;
                 }
-                
+            }
+
+            copyFile(source, target);
+            // the same time on both sides is what lets the next sync skip the file
+            Files.setLastModifiedTime(target, sourceAttributes.lastModifiedTime());
+            manifest.put(key, new SyncManifest.Entry(sourceSize, sourceModified, sourceSize, sourceModified, hash));
+        }
+
+        private String hash(Path file) throws IOException {
+            openFiles.acquireUninterruptibly();
+            try {
+                String hash = SyncManifest.hash(file, job);
+                bytesHashed.addAndGet(Files.size(file));
+                return hash;
+            } finally {
+                openFiles.release();
+            }
+        }
+
+        // The parallel version of copyTree: the directory is created first, then every
+        // file and subdirectory in it becomes its own task
+        class CopyTreeTask extends RecursiveAction {
+
+            private static final long serialVersionUID = 1L;
+
+            private final Path source;
+            private final Path target;
+            private final boolean isFile;
+
+            CopyTreeTask(Path source, Path target) {
+                this(source, target, false);
+            }
+
+            private CopyTreeTask(Path source, Path target, boolean isFile) {
+                this.source = source;
+                this.target = target;
+                this.isFile = isFile;
+            }
+
+            @Override
+            protected void compute() {
                 try {
-                    boolean append = (outputType == "w") ? false : true;
-                    FileWriter f =  new FileWriter(newPath.toFile(), append);
-                    if (append) {
-                        f.append(commandOutput);
-                    } else {
-                        f.write(commandOutput);
+                    if (isFile) {
+                        copyEntry(source, target);
+                        return;
                     }
-                    f.close();
+
+                    Files.createDirectories(target);
+                    List<CopyTreeTask> children = new ArrayList<>();
+                    for (Path entry : listDirectory(source)) {
+                        boolean entryIsFile = !Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS);
+                        children.add(new CopyTreeTask(entry, target.resolve(entry.getFileName()), entryIsFile));
+                    }
+                    invokeAll(children);
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    throw new UncheckedIOException(e);
                 }
             }
+        }
 
+        public long getFilesCopied() {
+            return filesCopied.get();
+        }
 
+        public long getBytesCopied() {
+            return bytesCopied.get();
         }
 
-        public boolean chooseCommandAction(){
-            System.out.println();
-            System.out.print(path.toString() + "> ");
-            String input = System.console().readLine();
-            this.parser.parse(input);
-            if (this.parser.commandName.equals("exit")) {
-                return false;
+        public long getBytesHashed() {
+            return bytesHashed.get();
+        }
+
+        public String report() {
+            double seconds = Math.max(System.nanoTime() - startTime, 1) / 1e9;
+            String report = String.format("%d file(s), %s in %.3f s (%.1f files/s, %s/s)",
+                getFilesCopied(), formatSize(getBytesCopied()), seconds,
+                getFilesCopied() / seconds, formatSize((long) (getBytesCopied() / seconds)));
+            if (manifest != null) {
+                report += String.format(", %d unchanged file(s) skipped, %s hashed", filesSkipped.get(), formatSize(getBytesHashed()));
             }
-            if (this.commandMap.containsKey(parser.commandName)) {
-                String[] outputInfo= getOutputFile(); 
+            return report;
+        }
+    }
 
-                String commandOutput = this.commandMap.get(parser.commandName).apply(null);
-                
-                writeOutput(commandOutput, outputInfo);
-                this.history.add(this.parser.commandName);
+    // What cp -r --sync knows about the files it copied into a target tree, kept in
+    // MANIFEST_NAME at the top of the target. Per file, keyed by its path below the
+    // target: the size and modification time of the source and of the copy at the
+    // last sync, and the content hash when one was computed. Only the files seen by
+    // a sync are written back, so deleted sources drop out of the manifest
+    static class SyncManifest {
+
+        static final String MANIFEST_NAME = ".cli-sync";
+        private static final int VERSION = 1;
+        // files are hashed in chunks of this size on parallel workers
+        private static final long HASH_CHUNK = 8L * 1024 * 1024;
+
+        static final class Entry {
+            final long sourceSize;
+            final long sourceModified;
+            final long targetSize;
+            final long targetModified;
+            // empty when the file was never hashed
+            final String hash;
+
+            Entry(long sourceSize, long sourceModified, long targetSize, long targetModified, String hash) {
+                this.sourceSize = sourceSize;
+                this.sourceModified = sourceModified;
+                this.targetSize = targetSize;
+                this.targetModified = targetModified;
+                this.hash = hash;
+            }
+        }
+
+        private final Path file;
+        private final Map<String, Entry> previous;
+        private final ConcurrentHashMap<String, Entry> current = new ConcurrentHashMap<>();
+
+        private SyncManifest(Path file, Map<String, Entry> previous) {
+            this.file = file;
+            this.previous = previous;
+        }
+
+        // A missing or unreadable manifest is an empty one, every file is then checked
+        static SyncManifest load(Path targetRoot) {
+            Path file = targetRoot.resolve(MANIFEST_NAME);
+            Map<String, Entry> entries = new HashMap<>();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (in.readInt() == VERSION) {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        String key = in.readUTF();
+                        entries.put(key, new Entry(in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readUTF()));
+                    }
+                }
+            } catch (IOException e) {
+                entries.clear();
+            }
+            return new SyncManifest(file, entries);
+        }
+
+        Entry get(String key) {
+            return previous.get(key);
+        }
+
+        void put(String key, Entry entry) {
+            current.put(key, entry);
+        }
+
+        // Written next to the manifest first and moved over it, so a sync that is
+        // killed halfway never leaves a broken manifest behind
+        void save() throws IOException {
+            if (!Files.isDirectory(file.getParent())) {
+                return;
+            }
+            Path written = file.resolveSibling(MANIFEST_NAME + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(written)))) {
+                out.writeInt(VERSION);
+                out.writeInt(current.size());
+                for (Map.Entry<String, Entry> record : current.entrySet()) {
+                    Entry entry = record.getValue();
+                    out.writeUTF(record.getKey());
+                    out.writeLong(entry.sourceSize);
+                    out.writeLong(entry.sourceModified);
+                    out.writeLong(entry.targetSize);
+                    out.writeLong(entry.targetModified);
+                    out.writeUTF(entry.hash);
+                }
+            }
+            Files.move(written, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // SHA-256 over the SHA-256 of every chunk, the chunks are hashed in parallel
+        static String hash(Path file, Job job) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                int chunks = (int) Math.max(1, (size + HASH_CHUNK - 1) / HASH_CHUNK);
+                byte[][] digests;
+                try {
+                    digests = IntStream.range(0, chunks).parallel()
+                        .mapToObj(i -> {
+                            long start = i * HASH_CHUNK;
+                            try {
+                                Job.checkCancelled(job);
+                                MessageDigest digest = sha256();
+                                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(HASH_CHUNK, size - start)));
+                                return digest.digest();
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        })
+                        .toArray(byte[][]::new);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                MessageDigest total = sha256();
+                for (byte[] digest : digests) {
+                    total.update(digest);
+                }
+                return HexFormat.of().formatHex(total.digest());
+            }
+        }
+
+        private static MessageDigest sha256() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // every Java runtime has to provide SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    static String formatSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String units = "KMGTPE";
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length() - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %siB", value, units.charAt(unit));
+    }
+    
+    // Counts lines, words and bytes straight from a memory mapped file without
+    // creating a String per line. Big files are cut into chunks that are counted
+    // in parallel; a word cut in two by a chunk edge is only counted once when
+    // the chunks are merged
+    static class WordCounter {
+
+        private static final long CHUNK_SIZE = 64L * 1024 * 1024;
+
+        static final class Counts {
+
+            static final Counts EMPTY = new Counts(0, 0, 0, false, false);
+
+            final long lines;
+            final long words;
+            final long bytes;
+            // whether the first and last byte belong to a word, needed to join chunks
+            final boolean startsInWord;
+            final boolean endsInWord;
+
+            Counts(long lines, long words, long bytes, boolean startsInWord, boolean endsInWord) {
+                this.lines = lines;
+                this.words = words;
+                this.bytes = bytes;
+                this.startsInWord = startsInWord;
+                this.endsInWord = endsInWord;
+            }
+
+            // Combines the counts of this chunk with the chunk that directly follows it
+            Counts merge(Counts next) {
+                if (bytes == 0) {
+                    return next;
+                }
+                if (next.bytes == 0) {
+                    return this;
+                }
+                long joinedWords = (endsInWord && next.startsInWord) ? 1 : 0;
+                return new Counts(lines + next.lines, words + next.words - joinedWords,
+                    bytes + next.bytes, startsInWord, next.endsInWord);
+            }
+
+            // Adds the counts of another file, words never run across files
+            Counts plus(Counts other) {
+                return new Counts(lines + other.lines, words + other.words, bytes + other.bytes, false, false);
+            }
+
+            String format(boolean showLines, boolean showWords, boolean showBytes) {
+                StringBuilder result = new StringBuilder();
+                if (showLines) {
+                    result.append(lines).append(' ');
+                }
+                if (showWords) {
+                    result.append(words).append(' ');
+                }
+                if (showBytes) {
+                    result.append(bytes).append(' ');
+                }
+                return result.substring(0, result.length() - 1);
             }
-            else {
-                System.out.println("This command is not available");
-            }            
-            return true;
+        }
+
+        static boolean isSpace(int b) {
+            return b == ' ' || b == '\n' || b == '\t' || b == '\r' || b == 0x0B || b == '\f';
+        }
+
+        static Counts count(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                int chunks = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+                if (chunks <= 1) {
+                    return countChunk(channel, 0, size);
+                }
+                Job job = Job.current();
+                try {
+                    return IntStream.range(0, chunks).parallel()
+                        .mapToObj(i -> {
+                            long start = i * CHUNK_SIZE;
+                            try {
+                                Job.checkCancelled(job);
+                                return countChunk(channel, start, Math.min(CHUNK_SIZE, size - start));
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        })
+                        .reduce(Counts.EMPTY, Counts::merge);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+        }
+
+        // Counts a stream, e.g. a pipe, reusing one buffer for the whole stream
+        static Counts count(InputStream in) throws IOException {
+            byte[] bytes = new byte[64 * 1024];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            Counts total = Counts.EMPTY;
+            int read;
+            while ((read = in.read(bytes)) != -1) {
+                Job.checkCancelled();
+                buffer.limit(read);
+                total = total.merge(count(buffer));
+            }
+            return total;
+        }
+
+        private static Counts countChunk(FileChannel channel, long start, long length) throws IOException {
+            if (length == 0) {
+                return Counts.EMPTY;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            return count(buffer);
+        }
+
+        // Counts the bytes between the buffer's position and limit
+        static Counts count(ByteBuffer buffer) {
+            int from = buffer.position(), to = buffer.limit();
+            if (from == to) {
+                return Counts.EMPTY;
+            }
+            long lines = 0, words = 0;
+            boolean inWord = false;
+            for (int i = from; i < to; i++) {
+                byte b = buffer.get(i);
+                if (b == '\n') {
+                    lines++;
+                }
+                if (isSpace(b)) {
+                    inWord = false;
+                } else if (!inWord) {
+                    inWord = true;
+                    words++;
+                }
+            }
+            return new Counts(lines, words, to - from, !isSpace(buffer.get(from)), inWord);
         }
     }
     
+    // A parsed command line: pipelines separated by ";"
+    static final class CommandLine {
+        final List<Pipeline> pipelines;
+
+        CommandLine(List<Pipeline> pipelines) {
+            this.pipelines = pipelines;
+        }
+    }
+
+    // Commands joined by "|", run as a job when the line had a & after them
+    static final class Pipeline {
+        final List<SimpleCommand> commands;
+        final boolean background;
+
+        Pipeline(List<SimpleCommand> commands, boolean background) {
+            this.commands = commands;
+            this.background = background;
+        }
+
+        // The pipeline written out again, as shown by jobs
+        String describe() {
+            StringBuilder text = new StringBuilder();
+            for (SimpleCommand command : commands) {
+                if (text.length() > 0) {
+                    text.append(" | ");
+                }
+                text.append(command.describe());
+            }
+            return text.toString();
+        }
+    }
+
+    // One command with its arguments and its own < and > / >> redirects
+    static final class SimpleCommand {
+        final String name;
+        final String[] args;
+        final String inputFile;
+        final String outputFile;
+        final boolean append;
+
+        SimpleCommand(String name, String[] args, String inputFile, String outputFile, boolean append) {
+            this.name = name;
+            this.args = args;
+            this.inputFile = inputFile;
+            this.outputFile = outputFile;
+            this.append = append;
+        }
+
+        String describe() {
+            StringBuilder text = new StringBuilder(name);
+            for (String arg : args) {
+                text.append(' ').append(arg);
+            }
+            if (inputFile != null) {
+                text.append(" < ").append(inputFile);
+            }
+            if (outputFile != null) {
+                text.append(append ? " >> " : " > ").append(outputFile);
+            }
+            return text.toString();
+        }
+    }
+
     public class Parser {
         
+        // parsed lines are immutable, so repeated lines (scripts, history replay) reuse them
+        private static final int CACHE_SIZE = 256;
+
         String commandName;
         String[] args;
+        private CommandLine commandLine;
+        private final Map<String, CommandLine> cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CommandLine> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
         //This method will divide the input into commandName and args
-        //where "input" is the string command entered by the user
+        //where "input" is the string command entered by the user.
+        //commandName and args are the ones of the first command, getCommandLine
+        //returns all of them. Returns false for an empty line and throws an
+        //IllegalArgumentException with the reason for a line that is not valid
         public boolean parse(String input){
-            if(input.trim().isEmpty()) {
-                return false;
+            CommandLine parsed = cache.get(input);
+            if (parsed == null) {
+                parsed = new Lexer(input).parseCommandLine();
+                cache.put(input, parsed);
             }
-            String[] splittedInput = input.split(" ");
-            commandName = splittedInput[0];
-            if(splittedInput.length == 1) {
-                args = new String[0];
-            }
-            else {
-                args = Arrays.copyOfRange(splittedInput, 1, splittedInput.length);;
+            if (parsed.pipelines.isEmpty()) {
+                return false;
             }
+            commandLine = parsed;
+            SimpleCommand first = parsed.pipelines.get(0).commands.get(0);
+            commandName = first.name;
+            args = first.args;
             return true;
         }
         public String getCommandName(){
@@ -590,8 +4996,152 @@ public class CLI {
         public String[] getArgs(){
             return this.args;
         }
-        
-        
-    }  
+        public CommandLine getCommandLine(){
+            return this.commandLine;
+        }
+    }
+
+    // Reads a command line in a single pass, building the CommandLine as it goes.
+    // Words are separated by spaces or tabs; '...' is taken literally, inside "..."
+    // a backslash escapes " and \, outside quotes it escapes any character.
+    // Unquoted | > >> < and ; are operators even without spaces around them
+    static final class Lexer {
+
+        private final String input;
+        private int position = 0;
+
+        private final List<Pipeline> pipelines = new ArrayList<>();
+        private List<SimpleCommand> commands = new ArrayList<>();
+        private final List<String> words = new ArrayList<>();
+        private String inputFile;
+        private String outputFile;
+        private boolean append;
+        private final StringBuilder word = new StringBuilder();
+
+        Lexer(String input) {
+            this.input = input;
+        }
+
+        CommandLine parseCommandLine() {
+            while (position < input.length()) {
+                char c = input.charAt(position);
+                if (c == ' ' || c == '\t') {
+                    position++;
+                } else if (c == '|') {
+                    position++;
+                    endCommand("|");
+                } else if (c == ';') {
+                    position++;
+                    endPipeline(false);
+                } else if (c == '&') {
+                    position++;
+                    endPipeline(true);
+                } else if (c == '<') {
+                    position++;
+                    inputFile = readRedirectTarget("<");
+                } else if (c == '>') {
+                    position++;
+                    append = position < input.length() && input.charAt(position) == '>';
+                    if (append) {
+                        position++;
+                    }
+                    outputFile = readRedirectTarget(append ? ">>" : ">");
+                } else {
+                    words.add(readWord());
+                }
+            }
+            endPipeline(false);
+            return new CommandLine(pipelines);
+        }
+
+        private String readRedirectTarget(String operator) {
+            while (position < input.length() && (input.charAt(position) == ' ' || input.charAt(position) == '\t')) {
+                position++;
+            }
+            if (position == input.length() || isOperator(input.charAt(position))) {
+                throw new IllegalArgumentException("Syntax error: " + operator + " needs a file name");
+            }
+            return readWord();
+        }
+
+        private static boolean isOperator(char c) {
+            return c == '|' || c == ';' || c == '&' || c == '<' || c == '>';
+        }
+
+        private String readWord() {
+            word.setLength(0);
+            while (position < input.length()) {
+                char c = input.charAt(position);
+                if (c == ' ' || c == '\t' || isOperator(c)) {
+                    break;
+                }
+                position++;
+                if (c == '\'') {
+                    int end = input.indexOf('\'', position);
+                    if (end == -1) {
+                        throw new IllegalArgumentException("Syntax error: missing closing '");
+                    }
+                    word.append(input, position, end);
+                    position = end + 1;
+                } else if (c == '"') {
+                    readDoubleQuoted();
+                } else if (c == '\\') {
+                    if (position == input.length()) {
+                        throw new IllegalArgumentException("Syntax error: nothing to escape after \\");
+                    }
+                    word.append(input.charAt(position++));
+                } else {
+                    word.append(c);
+                }
+            }
+            return word.toString();
+        }
+
+        private void readDoubleQuoted() {
+            while (position < input.length()) {
+                char c = input.charAt(position++);
+                if (c == '"') {
+                    return;
+                }
+                if (c == '\\' && position < input.length()
+                        && (input.charAt(position) == '"' || input.charAt(position) == '\\')) {
+                    c = input.charAt(position++);
+                }
+                word.append(c);
+            }
+            throw new IllegalArgumentException("Syntax error: missing closing \"");
+        }
+
+        private void endCommand(String operator) {
+            if (words.isEmpty()) {
+                if (!commands.isEmpty()) {
+                    throw new IllegalArgumentException("Syntax error: missing command after |");
+                }
+                if (operator.equals("|")) {
+                    throw new IllegalArgumentException("Syntax error: missing command before |");
+                }
+                if (inputFile != null || outputFile != null) {
+                    throw new IllegalArgumentException("Syntax error: redirect without a command");
+                }
+                return;
+            }
+            String[] args = words.subList(1, words.size()).toArray(new String[0]);
+            commands.add(new SimpleCommand(words.get(0), args, inputFile, outputFile, append));
+            words.clear();
+            inputFile = null;
+            outputFile = null;
+            append = false;
+        }
+
+        private void endPipeline(boolean background) {
+            endCommand(background ? "&" : ";");
+            if (!commands.isEmpty()) {
+                pipelines.add(new Pipeline(commands, background));
+                commands = new ArrayList<>();
+            } else if (background) {
+                throw new IllegalArgumentException("Syntax error: missing command before &");
+            }
+        }
+    }
     
 }
\ No newline at end of file
@@ -0,0 +1,73 @@
+package cli.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// wc, cat and cp against one small (4 KiB) and one large (256 MiB) text file.
+// cat writes into a discarded console, so it measures reading and encoding only
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileCommandBenchmark {
+
+    @Param({"small", "large"})
+    public String size;
+
+    private Path directory;
+    private Shell shell;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ReflectiveOperationException {
+        directory = Files.createTempDirectory("cli-bench-files");
+        Fixtures.writeTextFile(directory.resolve("input.txt"), Fixtures.sizeOf(size));
+        shell = Shell.open(directory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public boolean wc() {
+        return shell.run("wc input.txt");
+    }
+
+    @Benchmark
+    public boolean wcLines() {
+        return shell.run("wc -l input.txt");
+    }
+
+    @Benchmark
+    public boolean cat() {
+        return shell.run("cat input.txt");
+    }
+
+    @Benchmark
+    public boolean catIntoWc() {
+        return shell.run("cat input.txt | wc");
+    }
+
+    @Benchmark
+    public boolean cp() {
+        return shell.run("cp input.txt copy.txt");
+    }
+}
@@ -0,0 +1,100 @@
+package cli.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+// Generates the files and trees the benchmarks run against. The content is text
+// with words and lines of random length, seeded so every run sees the same data
+final class Fixtures {
+
+    static final long SMALL_FILE = 4 * 1024;
+    static final long LARGE_FILE = 256L * 1024 * 1024;
+
+    private Fixtures() {
+    }
+
+    static long sizeOf(String size) {
+        return size.equals("large") ? LARGE_FILE : SMALL_FILE;
+    }
+
+    static void writeTextFile(Path file, long size) throws IOException {
+        Random random = new Random(size);
+        long written = 0;
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder();
+            while (written < size) {
+                line.setLength(0);
+                int words = random.nextInt(12);
+                for (int i = 0; i < words; i++) {
+                    int length = 1 + random.nextInt(10);
+                    for (int j = 0; j < length; j++) {
+                        line.append((char) ('a' + random.nextInt(26)));
+                    }
+                    line.append(random.nextInt(8) == 0 ? '\t' : ' ');
+                }
+                line.append('\n');
+                int length = (int) Math.min(line.length(), size - written);
+                out.append(line, 0, length);
+                written += length;
+            }
+        }
+    }
+
+    // shallow: one directory with 2000 small files
+    // deep:    a chain of 100 nested directories with 5 files each
+    // wide:    500 directories next to each other with 4 files each
+    static void writeTree(Path root, String shape) throws IOException {
+        Files.createDirectories(root);
+        switch (shape) {
+            case "shallow":
+                writeFiles(root, 2000);
+                break;
+            case "deep":
+                Path directory = root;
+                for (int depth = 0; depth < 100; depth++) {
+                    directory = Files.createDirectory(directory.resolve("d" + depth));
+                    writeFiles(directory, 5);
+                }
+                break;
+            case "wide":
+                for (int i = 0; i < 500; i++) {
+                    writeFiles(Files.createDirectory(root.resolve("d" + i)), 4);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown tree shape: " + shape);
+        }
+    }
+
+    private static void writeFiles(Path directory, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            writeTextFile(directory.resolve("f" + i + ".txt"), 1024);
+        }
+    }
+
+    static void delete(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
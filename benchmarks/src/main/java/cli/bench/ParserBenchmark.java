@@ -0,0 +1,60 @@
+package cli.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+
+    @Param({"short", "long", "pipeline"})
+    public String line;
+
+    private Shell.Parser parser;
+    private Shell.Lexer lexer;
+    private String input;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        parser = Shell.newParser();
+        lexer = Shell.newLexer();
+        switch (line) {
+            case "short":
+                input = "ls -r";
+                break;
+            case "long":
+                input = "cp -r -j 4 -v \"some/rather long/source/directory\" another/long/target/directory > copy.log";
+                break;
+            default:
+                input = "cat a.log b.log c.log | wc -l >> counts.txt";
+        }
+    }
+
+    // a repeated line, answered from the parser's cache
+    @Benchmark
+    public void parse(Blackhole blackhole) {
+        blackhole.consume(parser.parse(input));
+        blackhole.consume(parser.getParser());
+    }
+
+    // the same line lexed from scratch every time
+    @Benchmark
+    public Object lex() {
+        return lexer.parse(input);
+    }
+}
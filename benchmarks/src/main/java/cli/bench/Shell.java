@@ -0,0 +1,121 @@
+package cli.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+
+// The shell lives in the default package, which code in a named package cannot
+// name. This looks the classes up once by reflection and then calls through
+// method handles, so the lookup is not part of what is measured
+final class Shell {
+
+    private static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+    private final Object terminal;
+    private final MethodHandle runCommandLine;
+
+    private Shell(Object terminal, MethodHandle runCommandLine) {
+        this.terminal = terminal;
+        this.runCommandLine = runCommandLine;
+    }
+
+    // A new terminal that throws its output away, with "directory" as working directory
+    static Shell open(Path directory) throws ReflectiveOperationException {
+        Class<?> cliClass = Class.forName("CLI");
+        Class<?> terminalClass = Class.forName("CLI$Terminal");
+        Object cli = cliClass.getConstructor().newInstance();
+
+        Constructor<?> constructor = terminalClass.getDeclaredConstructor(cliClass, PrintStream.class);
+        constructor.setAccessible(true);
+        Object terminal = constructor.newInstance(cli, DISCARD);
+
+        Method method = terminalClass.getMethod("runCommandLine", String.class);
+        method.setAccessible(true);
+        Shell shell = new Shell(terminal, MethodHandles.lookup().unreflect(method));
+        if (!shell.run("cd " + directory.toAbsolutePath())) {
+            throw new IllegalStateException("Could not cd into " + directory);
+        }
+        return shell;
+    }
+
+    // Runs one command line, returns false if the command reported an error
+    boolean run(String line) {
+        try {
+            return (boolean) runCommandLine.invoke(terminal, line);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // A stand alone CLI.Parser, for measuring the parser without running anything
+    static Parser newParser() throws ReflectiveOperationException {
+        Class<?> cliClass = Class.forName("CLI");
+        Class<?> parserClass = Class.forName("CLI$Parser");
+        Object cli = cliClass.getConstructor().newInstance();
+        Object parser = parserClass.getConstructor(cliClass).newInstance(cli);
+        Method parse = parserClass.getMethod("parse", String.class);
+        parse.setAccessible(true);
+        return new Parser(parser, MethodHandles.lookup().unreflect(parse));
+    }
+
+    // CLI.Lexer without the parse cache in front of it, every call parses the line again
+    static Lexer newLexer() throws ReflectiveOperationException {
+        Class<?> lexerClass = Class.forName("CLI$Lexer");
+        Constructor<?> constructor = lexerClass.getDeclaredConstructor(String.class);
+        constructor.setAccessible(true);
+        Method parseCommandLine = lexerClass.getDeclaredMethod("parseCommandLine");
+        parseCommandLine.setAccessible(true);
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        return new Lexer(lookup.unreflectConstructor(constructor), lookup.unreflect(parseCommandLine));
+    }
+
+    static final class Lexer {
+        private final MethodHandle constructor;
+        private final MethodHandle parseCommandLine;
+
+        private Lexer(MethodHandle constructor, MethodHandle parseCommandLine) {
+            this.constructor = constructor;
+            this.parseCommandLine = parseCommandLine;
+        }
+
+        Object parse(String line) {
+            try {
+                return parseCommandLine.invoke(constructor.invoke(line));
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    static final class Parser {
+        private final Object parser;
+        private final MethodHandle parse;
+
+        private Parser(Object parser, MethodHandle parse) {
+            this.parser = parser;
+            this.parse = parse;
+        }
+
+        boolean parse(String line) {
+            try {
+                return (boolean) parse.invoke(parser, line);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Object getParser() {
+            return parser;
+        }
+    }
+}
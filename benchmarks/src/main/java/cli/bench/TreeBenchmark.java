@@ -0,0 +1,79 @@
+package cli.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// cp -r (serial and parallel) and ls against shallow, deep and wide trees.
+// Every cp -r invocation copies into a fresh target, the targets are removed
+// after each iteration
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TreeBenchmark {
+
+    @Param({"shallow", "deep", "wide"})
+    public String shape;
+
+    private Path directory;
+    private Shell shell;
+    private Shell treeShell;
+    private int copies;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ReflectiveOperationException {
+        directory = Files.createTempDirectory("cli-bench-tree");
+        Fixtures.writeTree(directory.resolve("tree"), shape);
+        Files.createDirectory(directory.resolve("copies"));
+        shell = Shell.open(directory);
+        treeShell = Shell.open(directory.resolve("tree"));
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeCopies() throws IOException {
+        Fixtures.delete(directory.resolve("copies"));
+        Files.createDirectory(directory.resolve("copies"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public boolean copyTree() {
+        return shell.run("cp -r tree copies/" + (copies++));
+    }
+
+    @Benchmark
+    public boolean copyTreeParallel() {
+        return shell.run("cp -r -j 4 tree copies/" + (copies++));
+    }
+
+    @Benchmark
+    public boolean ls() {
+        return treeShell.run("ls");
+    }
+
+    @Benchmark
+    public boolean lsUnsorted() {
+        return treeShell.run("ls -U");
+    }
+}